@@ -31,33 +31,27 @@ public class AggressiveAgent extends Agent {
 
     /**
      * Generates the most aggressive move (greatest score difference) for the current 
-     * game state.
+     * game state. Captures are generated first, most valuable victim first, so the
+     * first capture found is the answer; quiet moves are only scored when there is
+     * no capture.
      * 
      * @param board The representation of the game state.
      * @return A ScoreDirections object which is the most aggressive move for the current game state.
      */
     public ScoreDirections FindAggressiveLegalMoves(Board board) {
+        StagedMoves staged = new StagedMoves(board);
+        if (!staged.hasNext()) {
+            return null;
+        }
+        Position[] move = staged.next();
+        if (staged.stage() != StagedMoves.QUIET) {
+            return new ScoreDirections(scoreOnMove(board, move[0], move[1]), move[0], move[1]);
+        }
         PriorityQueue<ScoreDirections> A_Moves = new PriorityQueue<>((r, c) -> c.eval - r.eval);
-        Position[] pieces = board.getPositions(board.getTurn()).toArray(new Position[0]);
-        Position end = pieces[0];
-        for (Position square : pieces) {
-            Piece mover = board.getPiece(square);
-            Direction[][] steps = mover.getType().getSteps();
-            int reps = mover.getType().getStepReps();
-            end = square;
-            for (Direction[] step : steps) {
-                end = square;
-                for (int i = 0; i < reps; i++) {
-                    try {
-                        if (board.isLegalMove(square, board.step(mover, step, end))) {
-                            end = board.step(mover, step, end);
-                            int diff = scoreOnMove(board, square, end);
-                            A_Moves.add(new ScoreDirections(diff, square, end));
-                        }
-                    } catch (ImpossiblePositionException e) {
-                    }
-                }
-            }
+        A_Moves.add(new ScoreDirections(scoreOnMove(board, move[0], move[1]), move[0], move[1]));
+        while (staged.hasNext()) {
+            move = staged.next();
+            A_Moves.add(new ScoreDirections(scoreOnMove(board, move[0], move[1]), move[0], move[1]));
         }
         return A_Moves.peek();
     }
@@ -0,0 +1,33 @@
+package threeChess.agents;
+
+import java.util.concurrent.Executor;
+import threeChess.*;
+
+/**
+ * Implemented by agents that can search in the background, so that a caller can
+ * read the best move so far, or stop the search, instead of blocking in playMove.
+ */
+public interface AnytimeSearch {
+
+    /**
+     * Starts choosing a move for the player to move. The agent's state is updated
+     * as if playMove had returned the move the handle completes with.
+     *
+     * @param board The representation of the game state, which is copied before
+     *              this returns.
+     * @return a handle on the running search.
+     */
+    SearchHandle search(Board board);
+
+    /**
+     * As {@link #search(Board)}, but runs the search as one task on the given
+     * executor instead of on a thread of the agent's own, so that a host can bound
+     * the threads all its agents search on.
+     *
+     * @param board    The representation of the game state, which is copied before
+     *                 this returns.
+     * @param executor where to run the search.
+     * @return a handle on the running search.
+     */
+    SearchHandle search(Board board, Executor executor);
+}
@@ -0,0 +1,62 @@
+package threeChess.agents;
+
+/**
+ * Sums the weights of the active features of every position in a {@link LeafBatch}.
+ *
+ * {@link Scalar} is the only evaluator in the default sources. The Vector API
+ * version, {@code VectorBatchEvaluator}, lives in the optional vector/ source root
+ * and is compiled separately onto the same class path, with
+ * {@code javac --add-modules jdk.incubator.vector}. {@link #shared()} uses it when
+ * its class is present and the jdk.incubator.vector module is available (run with
+ * --add-modules jdk.incubator.vector), and otherwise falls back to the scalar loop,
+ * which is also used when the threeChess.noVector system property is set.
+ */
+abstract class BatchEvaluator {
+
+    private static final BatchEvaluator shared = create();
+
+    /**
+     * Sets out[lane] to the sum of weights[index[k * capacity + lane]] over the first
+     * batch.active rows, for every lane in use.
+     *
+     * @param weights the weights, including a zero at the batch's padding index.
+     * @param batch   the positions to score.
+     */
+    abstract void sums(float[] weights, LeafBatch batch);
+
+    /**
+     * @return the fastest evaluator this JVM supports.
+     */
+    static BatchEvaluator shared() {
+        return shared;
+    }
+
+    private static BatchEvaluator create() {
+        if (!Boolean.getBoolean("threeChess.noVector")) {
+            try {
+                return (BatchEvaluator) Class.forName("threeChess.agents.VectorBatchEvaluator")
+                        .getDeclaredConstructor().newInstance();
+            } catch (Throwable e) {
+                // not compiled, the module is missing, or the vector code failed its self test
+            }
+        }
+        return new Scalar();
+    }
+
+    /**
+     * One lane at a time.
+     */
+    static final class Scalar extends BatchEvaluator {
+
+        @Override
+        void sums(float[] weights, LeafBatch batch) {
+            for (int lane = 0; lane < batch.size; lane++) {
+                float sum = 0;
+                for (int k = 0; k < batch.active; k++) {
+                    sum += weights[batch.index[k * batch.capacity + lane]];
+                }
+                batch.out[lane] = sum;
+            }
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package threeChess.agents;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import threeChess.*;
+
+/**
+ * The pieces on the board as bit masks of the 96 squares, held in a pair of longs
+ * (squares 0 to 63 in the low word, 64 to 95 in the high word, by Position ordinal).
+ *
+ * There is one occupancy mask per colour and one per piece type. Knights, kings and
+ * pawn captures use attack masks precomputed from {@link Rays}. Sliding pieces walk
+ * their rays, which already turn around at section boundaries, until the first
+ * occupied square. Mobility then reduces to popcounts, and threat queries to mask
+ * intersections.
+ *
+ * Methods that produce a mask write it into a long[2] {low, high} supplied by the caller.
+ */
+public final class BitBoard {
+
+    private static final Position[] squares = Position.values();
+    private static final PieceType[] types = PieceType.values();
+    private static final int COLOURS = Colour.values().length;
+    private static final int TYPES = types.length;
+    private static volatile long[][][][] leapers;
+
+    private final Rays rays;
+    /** leapers[colour][type][square] = {low, high} capture mask, null for sliding pieces. */
+    private final long[][][][] leaper;
+    private final long[] colourLo = new long[COLOURS];
+    private final long[] colourHi = new long[COLOURS];
+    private final long[] typeLo = new long[TYPES];
+    private final long[] typeHi = new long[TYPES];
+    private long occupiedLo;
+    private long occupiedHi;
+    private final long[] scratch = new long[2];
+
+    private BitBoard(Board board) {
+        rays = Rays.of(board);
+        leaper = leapers(rays);
+    }
+
+    /**
+     * @param board The representation of the game state.
+     * @return the masks of the pieces on the board.
+     */
+    public static BitBoard of(Board board) {
+        return of(board, PieceList.of(board));
+    }
+
+    /**
+     * @param board  The representation of the game state, used for its geometry.
+     * @param pieces The index of the pieces on the board.
+     * @return the masks of the indexed pieces.
+     */
+    public static BitBoard of(Board board, PieceList pieces) {
+        BitBoard bits = new BitBoard(board);
+        for (Colour colour : Colour.values()) {
+            for (PieceType type : types) {
+                for (int i = 0; i < pieces.count(colour, type); i++) {
+                    int s = pieces.get(colour, type, i).ordinal();
+                    if (s < 64) {
+                        bits.colourLo[colour.ordinal()] |= 1L << s;
+                        bits.typeLo[type.ordinal()] |= 1L << s;
+                    } else {
+                        bits.colourHi[colour.ordinal()] |= 1L << (s - 64);
+                        bits.typeHi[type.ordinal()] |= 1L << (s - 64);
+                    }
+                }
+            }
+        }
+        for (int c = 0; c < COLOURS; c++) {
+            bits.occupiedLo |= bits.colourLo[c];
+            bits.occupiedHi |= bits.colourHi[c];
+        }
+        return bits;
+    }
+
+    /**
+     * Reads the capture masks of every piece that does not slide from the
+     * {@link TableSnapshot}, or builds them, once.
+     */
+    private static long[][][][] leapers(Rays rays) {
+        if (leapers == null) {
+            synchronized (BitBoard.class) {
+                if (leapers == null) {
+                    long[][][][] masks = null;
+                    ByteBuffer section = TableSnapshot.shared().section(TableSnapshot.LEAPERS);
+                    if (section != null) {
+                        try {
+                            masks = readLeapers(section);
+                        } catch (RuntimeException e) {// a snapshot of other geometry: build the masks instead
+                            System.err.println("Ignoring the capture masks in the table snapshot: " + e);
+                        }
+                    }
+                    leapers = masks != null ? masks : buildLeapers(rays);
+                }
+            }
+        }
+        return leapers;
+    }
+
+    private static long[][][][] buildLeapers(Rays rays) {
+        long[][][][] masks = new long[COLOURS][TYPES][][];
+        for (int c = 0; c < COLOURS; c++) {
+            for (PieceType type : types) {
+                if (type.getStepReps() > 1) {
+                    continue;
+                }
+                long[][] forType = new long[squares.length][2];
+                for (int s = 0; s < squares.length; s++) {
+                    for (int[] ray : rays.captureRays[c][type.ordinal()][s]) {
+                        for (int target : ray) {
+                            set(forType[s], target);
+                        }
+                    }
+                }
+                masks[c][type.ordinal()] = forType;
+            }
+        }
+        return masks;
+    }
+
+    private static long[][][][] readLeapers(ByteBuffer in) {
+        long[][][][] masks = new long[COLOURS][TYPES][][];
+        for (int c = 0; c < COLOURS; c++) {
+            for (int t = 0; t < TYPES; t++) {
+                if (in.get() == 0) {
+                    continue;
+                }
+                masks[c][t] = new long[squares.length][2];
+                for (int s = 0; s < squares.length; s++) {
+                    masks[c][t][s][0] = in.getLong();
+                    masks[c][t][s][1] = in.getLong();
+                }
+            }
+        }
+        return masks;
+    }
+
+    /**
+     * @param rays the tables to build the masks from.
+     * @return the masks as bytes for a {@link TableSnapshot}: for each colour and
+     *         piece type, 1 and the {low, high} mask of every square, or 0 for a
+     *         sliding piece.
+     */
+    static byte[] encodeLeapers(Rays rays) {
+        long[][][][] masks = buildLeapers(rays);
+        ByteBuffer out = ByteBuffer.allocate(COLOURS * TYPES * (1 + squares.length * 16));
+        for (long[][][] forColour : masks) {
+            for (long[][] forType : forColour) {
+                out.put((byte) (forType == null ? 0 : 1));
+                for (int s = 0; forType != null && s < squares.length; s++) {
+                    out.putLong(forType[s][0]).putLong(forType[s][1]);
+                }
+            }
+        }
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    private static void set(long[] mask, int s) {
+        if (s < 64) {
+            mask[0] |= 1L << s;
+        } else {
+            mask[1] |= 1L << (s - 64);
+        }
+    }
+
+    /**
+     * @return true if and only if the square is in the mask.
+     */
+    public static boolean contains(long lo, long hi, int s) {
+        return s < 64 ? (lo >>> s & 1L) != 0 : (hi >>> (s - 64) & 1L) != 0;
+    }
+
+    /**
+     * @return the number of squares in the mask.
+     */
+    public static int count(long lo, long hi) {
+        return Long.bitCount(lo) + Long.bitCount(hi);
+    }
+
+    private boolean occupied(int s) {
+        return contains(occupiedLo, occupiedHi, s);
+    }
+
+    /**
+     * Writes the squares a piece could capture on from a square, given the current
+     * occupancy, whether or not an opponent's piece is there.
+     *
+     * @param out {low, high}, overwritten.
+     */
+    public void attacks(Colour colour, PieceType type, Position square, long[] out) {
+        int s = square.ordinal();
+        long[][] masks = leaper[colour.ordinal()][type.ordinal()];
+        if (masks != null) {
+            out[0] = masks[s][0];
+            out[1] = masks[s][1];
+            return;
+        }
+        out[0] = 0;
+        out[1] = 0;
+        for (int[] ray : rays.captureRays[colour.ordinal()][type.ordinal()][s]) {
+            for (int target : ray) {
+                set(out, target);
+                if (occupied(target)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes every square any piece of the colour could capture on.
+     *
+     * @param out {low, high}, overwritten.
+     */
+    public void attacks(Colour colour, long[] out) {
+        long lo = 0;
+        long hi = 0;
+        int c = colour.ordinal();
+        for (PieceType type : types) {
+            long pieceLo = colourLo[c] & typeLo[type.ordinal()];
+            long pieceHi = colourHi[c] & typeHi[type.ordinal()];
+            while (pieceLo != 0 || pieceHi != 0) {
+                int s;
+                if (pieceLo != 0) {
+                    s = Long.numberOfTrailingZeros(pieceLo);
+                    pieceLo &= pieceLo - 1;
+                } else {
+                    s = 64 + Long.numberOfTrailingZeros(pieceHi);
+                    pieceHi &= pieceHi - 1;
+                }
+                attacks(colour, type, squares[s], scratch);
+                lo |= scratch[0];
+                hi |= scratch[1];
+            }
+        }
+        out[0] = lo;
+        out[1] = hi;
+    }
+
+    /**
+     * @return true if and only if a piece of the colour could capture on the square.
+     */
+    public boolean attackedBy(Position square, Colour colour) {
+        long[] mask = new long[2];
+        attacks(colour, mask);
+        return contains(mask[0], mask[1], square.ordinal());
+    }
+
+    /**
+     * Writes the squares occupied by pieces of the colour.
+     *
+     * @param out {low, high}, overwritten.
+     */
+    public void occupancy(Colour colour, long[] out) {
+        out[0] = colourLo[colour.ordinal()];
+        out[1] = colourHi[colour.ordinal()];
+    }
+
+    /**
+     * @return the greatest value of a piece on a square of the mask, or 0 if there is none.
+     */
+    public int maxValue(long lo, long hi) {
+        int best = 0;
+        for (PieceType type : types) {
+            if (((lo & typeLo[type.ordinal()]) != 0 || (hi & typeHi[type.ordinal()]) != 0)
+                    && type.getValue() > best) {
+                best = type.getValue();
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Counts the moves of the colour: every capture or move to an empty square,
+     * with pawns moving forward onto empty squares (two from their first row) and
+     * capturing diagonally. Castling is not counted.
+     *
+     * @return the number of moves the colour could make.
+     */
+    public int mobility(Colour colour) {
+        int c = colour.ordinal();
+        long ownLo = colourLo[c];
+        long ownHi = colourHi[c];
+        long enemyLo = occupiedLo & ~ownLo;
+        long enemyHi = occupiedHi & ~ownHi;
+        int count = 0;
+        for (PieceType type : types) {
+            long pieceLo = ownLo & typeLo[type.ordinal()];
+            long pieceHi = ownHi & typeHi[type.ordinal()];
+            while (pieceLo != 0 || pieceHi != 0) {
+                int s;
+                if (pieceLo != 0) {
+                    s = Long.numberOfTrailingZeros(pieceLo);
+                    pieceLo &= pieceLo - 1;
+                } else {
+                    s = 64 + Long.numberOfTrailingZeros(pieceHi);
+                    pieceHi &= pieceHi - 1;
+                }
+                attacks(colour, type, squares[s], scratch);
+                if (type == PieceType.PAWN) {
+                    count += count(scratch[0] & enemyLo, scratch[1] & enemyHi);
+                    int[][] steps = rays.rays[c][type.ordinal()][s];
+                    if (steps[0].length > 0 && !occupied(steps[0][0])) {
+                        count++;
+                        Position square = squares[s];
+                        if (square.getColour() == colour && square.getRow() == 1 && steps.length > 1
+                                && steps[1].length > 0 && !occupied(steps[1][0])) {
+                            count++;
+                        }
+                    }
+                } else {
+                    count += count(scratch[0] & ~ownLo, scratch[1] & ~ownHi);
+                }
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,287 @@
+package threeChess.agents;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import threeChess.*;
+
+/**
+ * Solves an {@link EndgameTable} offline by retrograde analysis, on all cores.
+ *
+ * Every position of a king and one piece against two lone kings is first given
+ * its immediate outcome: 1 where the strong side to move can take a king, and for
+ * each lone king to move, the number of its moves that do not take anything, or a
+ * mark if it can take a piece or has no move at all (the strong side cannot then
+ * force a win there). Then, one distance at a time, every position solved at that
+ * distance is unmoved to the positions it came from: a strong side position is
+ * solved at the next distance the first time it is reached, and a lone king
+ * position once all its moves have been reached. Positions never solved stay 0.
+ * Marking every lone king position with a capture is conservative: a lone king
+ * that can only take a guarded piece loses it back at once, so some won positions
+ * are stored as 0, and {@link EndgameTable#bestMove} never plays those captures.
+ *
+ * Moves follow the geometry of {@link Rays}; castling and captures never lead into
+ * the table, so only moves to empty squares are unmoved.
+ *
+ * Usage: EndgameGenerator [piece type] [directory] [threads]
+ * The generator holds about 450MB of tables, so run it with -Xmx1g or more.
+ */
+public class EndgameGenerator {
+
+    private static final int SQUARES = EndgameTable.SQUARES;
+    private static final int PER_TURN = SQUARES * SQUARES * SQUARES * SQUARES;
+    private static final int KING = PieceType.KING.ordinal();
+    /** The move count of a lone king position that can never be solved. */
+    private static final byte ESCAPES = (byte) 0x80;
+    private static final int MAX_DISTANCE = 255;
+    private static final VarHandle BYTES = MethodHandles.arrayElementVarHandle(byte[].class);
+
+    private final PieceType extra;
+    private final int threads;
+    private final Rays rays;
+    /** kingTargets[colour][square] = the distinct squares a king can step to. */
+    private final int[][][] kingTargets;
+    private final byte[] table = new byte[EndgameTable.ENTRIES];
+    /** For lone king positions, the moves not yet known to lose, indexed from turn 1. */
+    private final byte[] unsolved = new byte[2 * PER_TURN];
+
+    /**
+     * @param extra   the strong side's piece besides its king; not a pawn or king.
+     * @param threads the number of threads to solve with.
+     */
+    public EndgameGenerator(PieceType extra, int threads) {
+        this.extra = extra;
+        this.threads = threads;
+        this.rays = Rays.of(new Board(0));
+        kingTargets = new int[3][SQUARES][];
+        for (int c = 0; c < 3; c++) {
+            for (int s = 0; s < SQUARES; s++) {
+                kingTargets[c][s] = Arrays.stream(rays.rays[c][KING][s]).flatMapToInt(Arrays::stream).distinct()
+                        .toArray();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        PieceType extra = PieceType.valueOf(args.length > 0 ? args[0].toUpperCase() : "QUEEN");
+        Path directory = Paths.get(args.length > 1 ? args[1]
+                : System.getProperty("threeChess.endgames", "endgames"));
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        if (extra == PieceType.KING || extra == PieceType.PAWN) {
+            throw new IllegalArgumentException("The strong side's piece must not be a king or pawn: " + extra);
+        }
+        EndgameGenerator generator = new EndgameGenerator(extra, threads);
+        long[] solved = generator.solve();
+        Files.createDirectories(directory);
+        Path out = directory.resolve(EndgameTable.fileName(extra));
+        EndgameTable.write(out, extra, generator.table);
+        System.out.println("Wrote " + solved[0] + " won positions, longest " + solved[1] + " plies, to " + out);
+    }
+
+    /**
+     * Fills the table.
+     *
+     * @return the number of positions the strong side wins, and the longest win.
+     */
+    public long[] solve() throws InterruptedException, ExecutionException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            AtomicLong found = new AtomicLong();
+            forEachChunk(pool, (turn, king) -> initialise(turn, king, found));
+            long total = 0;
+            int distance = 1;
+            while (found.get() > 0 && distance < MAX_DISTANCE) {
+                System.out.println("distance " + distance + ": " + found.get() + " positions");
+                total += found.get();
+                found.set(0);
+                int d = distance;
+                forEachChunk(pool, (turn, king) -> unmove(turn, king, d, found));
+                distance++;
+            }
+            total += found.get();
+            return new long[] { total, found.get() > 0 ? distance : distance - 1 };
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private interface Chunk {
+        void run(int turn, int king);
+    }
+
+    /**
+     * Runs one task per turn and strong king square, and waits for them all.
+     */
+    private void forEachChunk(ExecutorService pool, Chunk chunk) throws InterruptedException, ExecutionException {
+        List<Future<?>> tasks = new ArrayList<>();
+        for (int turn = 0; turn < 3; turn++) {
+            for (int king = 0; king < SQUARES; king++) {
+                int t = turn;
+                int k = king;
+                tasks.add(pool.submit(() -> chunk.run(t, k)));
+            }
+        }
+        for (Future<?> task : tasks) {
+            task.get();
+        }
+    }
+
+    /**
+     * Gives every position in the chunk its immediate outcome.
+     */
+    private void initialise(int turn, int king, AtomicLong found) {
+        long won = 0;
+        for (int piece = 0; piece < SQUARES; piece++) {
+            for (int next = 0; next < SQUARES; next++) {
+                for (int last = 0; last < SQUARES; last++) {
+                    if (piece == king || next == king || last == king || next == piece || last == piece
+                            || last == next) {
+                        continue;
+                    }
+                    int i = EndgameTable.index(turn, king, piece, next, last);
+                    if (turn == 0) {
+                        if (takesKing(king, piece, next, last)) {
+                            table[i] = 1;
+                            won++;
+                        }
+                    } else {
+                        unsolved[i - PER_TURN] = quietMoves(turn, turn == 1 ? next : last, king, piece,
+                                turn == 1 ? last : next);
+                    }
+                }
+            }
+        }
+        found.addAndGet(won);
+    }
+
+    /**
+     * @return true if and only if the strong side to move can take a lone king.
+     */
+    private boolean takesKing(int king, int piece, int next, int last) {
+        int[] occupied = { king, piece, next, last };
+        return reaches(0, KING, king, next, occupied) || reaches(0, KING, king, last, occupied)
+                || reaches(0, extra.ordinal(), piece, next, occupied)
+                || reaches(0, extra.ordinal(), piece, last, occupied);
+    }
+
+    /**
+     * @return true if and only if the piece can move from one square to another past
+     *         the occupied squares.
+     */
+    private boolean reaches(int colour, int type, int from, int to, int[] occupied) {
+        for (Rays.Line line : rays.lines[colour][to]) {
+            if (line.from == from && (line.types & 1 << type) != 0 && clear(line.between, occupied)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean clear(int[] between, int[] occupied) {
+        for (int square : between) {
+            if (contains(occupied, square)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean contains(int[] squares, int square) {
+        for (int s : squares) {
+            if (s == square) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of moves of a lone king to empty squares, or ESCAPES if it
+     *         can take a piece or cannot move.
+     */
+    private byte quietMoves(int colour, int from, int king, int piece, int other) {
+        int[] targets = kingTargets[colour][from];
+        for (int to : targets) {
+            if (to == king || to == piece || to == other) {
+                return ESCAPES;
+            }
+        }
+        return targets.length == 0 ? ESCAPES : (byte) targets.length;
+    }
+
+    /**
+     * Unmoves every position in the chunk solved at the given distance, solving
+     * the positions before it that it decides.
+     */
+    private void unmove(int turn, int king, int distance, AtomicLong found) {
+        int mover = (turn + 2) % 3;
+        byte solvedAt = (byte) distance;
+        byte solving = (byte) (distance + 1);
+        int base = EndgameTable.index(turn, king, 0, 0, 0);
+        long won = 0;
+        for (int i = 0; i < SQUARES * SQUARES * SQUARES; i++) {
+            if (table[base + i] != solvedAt) {
+                continue;
+            }
+            int[] placed = { king, i / (SQUARES * SQUARES), i / SQUARES % SQUARES, i % SQUARES };
+            if (mover == 0) {
+                for (int p = 0; p < 2; p++) {
+                    int type = p == 0 ? KING : extra.ordinal();
+                    for (int from : origins(0, type, placed[p], placed)) {
+                        int before = index(mover, placed, p, from);
+                        if (BYTES.compareAndSet(table, before, (byte) 0, solving)) {
+                            won++;
+                        }
+                    }
+                }
+            } else {
+                int p = mover + 1;
+                for (int from : origins(mover, KING, placed[p], placed)) {
+                    int before = index(mover, placed, p, from);
+                    if (unsolved[before - PER_TURN] == ESCAPES) {
+                        continue;
+                    }
+                    if ((byte) BYTES.getAndAdd(unsolved, before - PER_TURN, (byte) -1) == 1) {
+                        // every move of the lone king now loses, the slowest in this many plies
+                        table[before] = solving;
+                        won++;
+                    }
+                }
+            }
+        }
+        found.addAndGet(won);
+    }
+
+    /**
+     * @return the empty squares from which the piece could have moved to its square.
+     */
+    private int[] origins(int colour, int type, int to, int[] occupied) {
+        int[] from = new int[rays.lines[colour][to].length];
+        int n = 0;
+        for (Rays.Line line : rays.lines[colour][to]) {
+            if ((line.types & 1 << type) == 0 || !clear(line.between, occupied) || contains(occupied, line.from)) {
+                continue;
+            }
+            boolean seen = false;
+            for (int j = 0; j < n && !seen; j++) {
+                seen = from[j] == line.from;
+            }
+            if (!seen) {
+                from[n++] = line.from;
+            }
+        }
+        return Arrays.copyOf(from, n);
+    }
+
+    /**
+     * @return the index of the position with one piece moved back, and its mover to play.
+     */
+    private static int index(int turn, int[] placed, int piece, int from) {
+        int[] before = placed.clone();
+        before[piece] = from;
+        return EndgameTable.index(turn, before[0], before[1], before[2], before[3]);
+    }
+}
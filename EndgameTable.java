@@ -0,0 +1,300 @@
+package threeChess.agents;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import threeChess.*;
+
+/**
+ * Solved endgames of one player with a king and one other piece against two
+ * lone kings, read from compact memory mapped files built by {@link EndgameGenerator}.
+ *
+ * A table is solved from the strong side's point of view, with the two lone kings
+ * playing together against it: each entry holds the number of plies in which the
+ * strong side can force the capture of a king whatever the others do, or 0 if it
+ * cannot (because a lone king can take its king or its piece, or can run forever).
+ *
+ * Positions are seen in the frame where the strong side is BLUE, as with
+ * {@link ZobristHash#canonical}, so one table serves all three colours. An entry is
+ * found at index (((turn * 96 + king) * 96 + piece) * 96 + next king) * 96 + last king,
+ * where turn is 0 for the strong side, 1 for the player after it and 2 for the one
+ * after that, and each square is a rotated Position ordinal.
+ *
+ * The file starts with a header (magic, version, piece type ordinal, squares)
+ * followed by one unsigned byte per index. Each file is mapped once per JVM.
+ */
+public final class EndgameTable {
+
+    public static final int MAGIC = 0x3343454B;
+    public static final int VERSION = 1;
+    public static final int HEADER_BYTES = 16;
+    /** Returned by {@link #distance} for material no table covers. */
+    public static final int UNKNOWN = -1;
+
+    static final int SQUARES = Position.values().length;
+    static final int ENTRIES = 3 * SQUARES * SQUARES * SQUARES * SQUARES;
+
+    private static final String DEFAULT_DIRECTORY = "endgames";
+    private static final Position[] squares = Position.values();
+    private static final Colour[] colours = Colour.values();
+    private static final Map<Path, EndgameTable> tables = new ConcurrentHashMap<>();
+    private static final EndgameTable MISSING = new EndgameTable(null);
+
+    private final ByteBuffer entries;
+
+    private EndgameTable(ByteBuffer entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * @param extra the strong side's piece besides its king.
+     * @return the name of the file solving that material, such as kqkk.egtb.
+     */
+    public static String fileName(PieceType extra) {
+        char piece = extra == PieceType.KNIGHT ? 'n' : Character.toLowerCase(extra.name().charAt(0));
+        return "k" + piece + "kk.egtb";
+    }
+
+    /**
+     * @param extra the strong side's piece besides its king.
+     * @return the table for that material from the directory named by the
+     *         threeChess.endgames system property (or endgames in the working
+     *         directory), or null if there is no such file.
+     */
+    public static EndgameTable shared(PieceType extra) {
+        Path path = Paths.get(System.getProperty("threeChess.endgames", DEFAULT_DIRECTORY), fileName(extra));
+        EndgameTable table = tables.computeIfAbsent(path.toAbsolutePath(), p -> map(p, extra));
+        return table == MISSING ? null : table;
+    }
+
+    private static EndgameTable map(Path path, PieceType extra) {
+        if (!Files.isReadable(path)) {
+            return MISSING;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() != (long) HEADER_BYTES + ENTRIES) {
+                return MISSING;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(8) != extra.ordinal()
+                    || buffer.getInt(12) != SQUARES) {
+                return MISSING;
+            }
+            return new EndgameTable(buffer);
+        } catch (IOException e) {
+            return MISSING;
+        }
+    }
+
+    /**
+     * Writes a table built by {@link EndgameGenerator}.
+     *
+     * @param path    the file to write.
+     * @param extra   the strong side's piece besides its king.
+     * @param entries one byte per index, as described above.
+     * @throws IOException if the file cannot be written.
+     */
+    static void write(Path path, PieceType extra, byte[] entries) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC).putInt(VERSION).putInt(extra.ordinal()).putInt(SQUARES).flip();
+        ByteBuffer body = ByteBuffer.wrap(entries);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            while (body.hasRemaining()) {
+                channel.write(body);
+            }
+        }
+        tables.remove(path.toAbsolutePath());
+    }
+
+    /**
+     * @return the index of a position seen from the strong side, as described above.
+     */
+    static int index(int turn, int king, int piece, int next, int last) {
+        return (((turn * SQUARES + king) * SQUARES + piece) * SQUARES + next) * SQUARES + last;
+    }
+
+    /**
+     * @param pieces the index of the pieces on the board.
+     * @return the colour with a king and one other piece when the two others have
+     *         only their kings and that piece is not a pawn, otherwise null.
+     */
+    public static Colour strongSide(PieceList pieces) {
+        Colour strong = null;
+        for (Colour colour : colours) {
+            int count = pieces.count(colour);
+            if (pieces.count(colour, PieceType.KING) != 1 || count > 2) {
+                return null;
+            }
+            if (count == 2) {
+                if (strong != null) {
+                    return null;
+                }
+                strong = colour;
+            }
+        }
+        if (strong == null || pieces.count(strong, PieceType.PAWN) > 0) {
+            return null;
+        }
+        return strong;
+    }
+
+    /**
+     * @param pieces the index of the pieces on the board.
+     * @param strong the colour with the extra piece.
+     * @return the extra piece's type.
+     */
+    private static PieceType extra(PieceList pieces, Colour strong) {
+        for (Position square : pieces.positions(strong)) {
+            if (pieces.typeAt(square) != PieceType.KING) {
+                return pieces.typeAt(square);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Looks up a position in the table for its material.
+     *
+     * @param pieces the index of the pieces on the board.
+     * @param turn   the player to move.
+     * @return the number of plies in which the strong side forces a king capture,
+     *         0 if it cannot, or UNKNOWN if no table covers the position.
+     */
+    public static int distance(PieceList pieces, Colour turn) {
+        Colour strong = strongSide(pieces);
+        if (strong == null) {
+            return UNKNOWN;
+        }
+        EndgameTable table = shared(extra(pieces, strong));
+        if (table == null) {
+            return UNKNOWN;
+        }
+        int[] placed = frame(pieces, strong);
+        return table.get((turn.ordinal() - strong.ordinal() + 3) % 3, placed);
+    }
+
+    /**
+     * Scores a solved position for a search: the strong side wins a forced capture
+     * and the two others share the loss, since either king may be the one taken;
+     * any other solved position is level.
+     *
+     * @param pieces   the index of the pieces on the board.
+     * @param distance the position's entry, as returned by {@link #distance}.
+     * @param result   the result for each colour, indexed by ordinal.
+     */
+    public static void result(PieceList pieces, int distance, float[] result) {
+        Colour strong = strongSide(pieces);
+        for (Colour colour : colours) {
+            result[colour.ordinal()] = distance <= 0 ? 0f : colour == strong ? 1f : -0.5f;
+        }
+    }
+
+    /**
+     * Chooses a move from the table: the strong side takes the quickest forced
+     * capture; a lone king takes a king, or the strong piece if no other king can
+     * take it back, else keeps the position unsolved, else delays the capture for as
+     * long as possible. A lone king never takes a guarded piece here, since the
+     * table does not say what follows.
+     *
+     * @param board  The representation of the game state.
+     * @param pieces the index of the pieces on the board.
+     * @return a legal two element array {start, end}, or null if no table covers
+     *         the position or the strong side to move has no forced capture.
+     */
+    public static Position[] bestMove(Board board, PieceList pieces) {
+        Colour strong = strongSide(pieces);
+        if (strong == null) {
+            return null;
+        }
+        EndgameTable table = shared(extra(pieces, strong));
+        if (table == null) {
+            return null;
+        }
+        int turn = (board.getTurn().ordinal() - strong.ordinal() + 3) % 3;
+        int[] placed = frame(pieces, strong);
+        int now = table.get(turn, placed);
+        if (turn == 0 && now == 0) {
+            return null;
+        }
+        int rotation = (3 - strong.ordinal()) % 3;
+        Rays rays = Rays.of(board);
+        StagedMoves staged = new StagedMoves(board, pieces);
+        Position[] best = null;
+        int bestScore = Integer.MIN_VALUE;
+        while (staged.hasNext()) {
+            Position[] move = staged.next();
+            if (staged.stage() == StagedMoves.KING_CAPTURE) {
+                return move;
+            }
+            if (staged.stage() == StagedMoves.CAPTURE) {
+                // taking the strong piece leaves three lone kings, unless the taker is taken next
+                if (!guarded(rays, pieces, move[1], board.getTurn())) {
+                    return move;
+                }
+                continue;
+            }
+            int from = ZobristHash.rotate(move[0], rotation).ordinal();
+            int to = ZobristHash.rotate(move[1], rotation).ordinal();
+            int[] after = placed.clone();
+            for (int i = 0; i < after.length; i++) {
+                if (after[i] == from) {
+                    after[i] = to;
+                }
+            }
+            int next = table.get((turn + 1) % 3, after);
+            // the strong side wants the shortest win, the others no win or the longest
+            int score = turn == 0 ? (next == 0 ? Integer.MIN_VALUE + 1 : -next) : next == 0 ? Integer.MAX_VALUE : next;
+            if (score > bestScore) {
+                bestScore = score;
+                best = move;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return true if and only if a king other than the mover's could step onto
+     *         the square.
+     */
+    private static boolean guarded(Rays rays, PieceList pieces, Position square, Colour mover) {
+        for (Colour colour : colours) {
+            Position king = pieces.king(colour);
+            if (colour == mover || king == null) {
+                continue;
+            }
+            for (Rays.Line line : rays.lines[colour.ordinal()][square.ordinal()]) {
+                if (line.from == king.ordinal() && (line.types & 1 << PieceType.KING.ordinal()) != 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the squares of the strong king, the strong piece, and the kings of
+     *         the next and last players, rotated into the strong side's frame.
+     */
+    private static int[] frame(PieceList pieces, Colour strong) {
+        int rotation = (3 - strong.ordinal()) % 3;
+        int[] placed = new int[4];
+        for (Position square : pieces.positions(strong)) {
+            placed[pieces.typeAt(square) == PieceType.KING ? 0 : 1] = ZobristHash.rotate(square, rotation).ordinal();
+        }
+        placed[2] = ZobristHash.rotate(pieces.king(colours[(strong.ordinal() + 1) % 3]), rotation).ordinal();
+        placed[3] = ZobristHash.rotate(pieces.king(colours[(strong.ordinal() + 2) % 3]), rotation).ordinal();
+        return placed;
+    }
+
+    private int get(int turn, int[] placed) {
+        return entries.get(HEADER_BYTES + index(turn, placed[0], placed[1], placed[2], placed[3])) & 0xFF;
+    }
+}
@@ -0,0 +1,223 @@
+package threeChess.agents;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.IntStream;
+import threeChess.*;
+
+/**
+ * Fits the {@link EvalWeights} of SmartAgent to recorded games with Texel style
+ * gradient descent.
+ * 
+ * Every move of every game in the given {@link GameRecord} files becomes a training
+ * position, labelled 1 if the mover went on to win, 0 if they lost and 0.5
+ * otherwise. The evaluation terms of each position are extracted once, in parallel;
+ * since the evaluation is linear in its weights, each descent step is then a single
+ * parallel pass over a flat array of terms.
+ * 
+ * Usage: EvalTuner output-weights-file iterations record-file...
+ */
+public class EvalTuner {
+
+    private static final int CHUNK = 1 << 14;
+    private static final double RATE = 0.05;
+
+    private final float[] features;
+    private final float[] results;
+    private final int size;
+    private double scale = 0.01;
+
+    /**
+     * @param features the terms of each position, EvalWeights.SIZE values per position.
+     * @param results  the result of each position for the player who moved.
+     */
+    public EvalTuner(float[] features, float[] results) {
+        this.features = features;
+        this.results = results;
+        this.size = results.length;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path out = Paths.get(args[0]);
+        int iterations = Integer.parseInt(args[1]);
+        List<GameRecord> games = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            try (GameRecordReader reader = new GameRecordReader(Paths.get(args[i]))) {
+                for (GameRecord record = reader.next(); record != null; record = reader.next()) {
+                    games.add(record);
+                }
+            }
+        }
+        long startTime = System.nanoTime();
+        EvalTuner tuner = extract(games);
+        System.out.println(tuner.size + " positions extracted in " + (System.nanoTime() - startTime) / 1_000_000L + "ms");
+        double[] weights = EvalWeights.shared().toArray();
+        tuner.fitScale(weights);
+        startTime = System.nanoTime();
+        weights = tuner.tune(weights, iterations);
+        long millis = Math.max(1, (System.nanoTime() - startTime) / 1_000_000L);
+        System.out.println("loss " + tuner.loss(weights) + ", " + (long) tuner.size * iterations * 60_000L / millis
+                + " positions per minute");
+        new EvalWeights(weights).save(out);
+    }
+
+    /**
+     * Replays every game in parallel and extracts the evaluation terms of each move
+     * as SmartAgent would have computed them when choosing it.
+     * 
+     * @param games the recorded games, all from the standard starting position.
+     * @return a tuner over all the positions of the games.
+     */
+    public static EvalTuner extract(List<GameRecord> games) {
+        List<float[][]> perGame = Arrays.asList(new float[games.size()][][]);
+        IntStream.range(0, games.size()).parallel().forEach(g -> perGame.set(g, extract(games.get(g))));
+        int total = 0;
+        for (float[][] game : perGame) {
+            total += game[1].length;
+        }
+        float[] features = new float[total * EvalWeights.SIZE];
+        float[] results = new float[total];
+        int at = 0;
+        for (float[][] game : perGame) {
+            System.arraycopy(game[0], 0, features, at * EvalWeights.SIZE, game[0].length);
+            System.arraycopy(game[1], 0, results, at, game[1].length);
+            at += game[1].length;
+        }
+        return new EvalTuner(features, results);
+    }
+
+    /**
+     * @return a two element array {terms, results} for the moves of one game.
+     */
+    private static float[][] extract(GameRecord game) {
+        SmartAgent agent = new SmartAgent(false);
+        float[] features = new float[game.moves.length * EvalWeights.SIZE];
+        float[] results = new float[game.moves.length];
+        int n = 0;
+        try {
+            Board board = game.replay(0);
+            for (int move : game.moves) {
+                Position from = PackedMove.from(move);
+                Position to = PackedMove.to(move);
+                Colour mover = board.getTurn();
+                Board after = agent.getGame(board);
+                after.move(from, to);
+                double[] f = agent.features(after, mover, agent.makeLegalMoves(after, mover).size(),
+                        agent.isCheck(after, to, from, mover, 1), agent.isCheck(after, to, from, mover, 2),
+                        agent.isCheck(board, to, from, mover, 3));
+                for (int i = 0; i < EvalWeights.SIZE; i++) {
+                    features[n * EvalWeights.SIZE + i] = (float) f[i];
+                }
+                results[n++] = mover == game.winner ? 1f : mover == game.loser ? 0f : 0.5f;
+                board = after;
+            }
+        } catch (CloneNotSupportedException | ImpossiblePositionException e) {
+        }
+        return new float[][] { Arrays.copyOf(features, n * EvalWeights.SIZE), Arrays.copyOf(results, n) };
+    }
+
+    /**
+     * Picks the scale of the sigmoid mapping evaluations to expected results that
+     * best fits the starting weights, which then stays fixed while tuning.
+     * 
+     * @param weights the starting weights.
+     */
+    public void fitScale(double[] weights) {
+        double best = Double.MAX_VALUE;
+        double bestScale = scale;
+        for (double k = 1e-4; k <= 1; k *= 1.25) {
+            scale = k;
+            double loss = loss(weights);
+            if (loss < best) {
+                best = loss;
+                bestScale = k;
+            }
+        }
+        scale = bestScale;
+    }
+
+    /**
+     * @param weights the weights to score.
+     * @return the mean squared error between the predicted and actual results.
+     */
+    public double loss(double[] weights) {
+        return IntStream.range(0, chunks()).parallel().mapToDouble(c -> {
+            double sum = 0;
+            for (int p = c * CHUNK, end = Math.min(size, p + CHUNK); p < end; p++) {
+                double error = results[p] - sigmoid(score(weights, p));
+                sum += error * error;
+            }
+            return sum;
+        }).sum() / size;
+    }
+
+    /**
+     * Runs Adam gradient descent on the mean squared error.
+     * 
+     * @param start      the starting weights.
+     * @param iterations the number of passes over all positions.
+     * @return the tuned weights.
+     */
+    public double[] tune(double[] start, int iterations) {
+        double[] weights = start.clone();
+        double[] m = new double[EvalWeights.SIZE];
+        double[] v = new double[EvalWeights.SIZE];
+        for (int t = 1; t <= iterations; t++) {
+            double[] gradient = gradient(weights);
+            for (int i = 0; i < EvalWeights.SIZE; i++) {
+                m[i] = 0.9 * m[i] + 0.1 * gradient[i];
+                v[i] = 0.999 * v[i] + 0.001 * gradient[i] * gradient[i];
+                double mHat = m[i] / (1 - Math.pow(0.9, t));
+                double vHat = v[i] / (1 - Math.pow(0.999, t));
+                weights[i] -= RATE * mHat / (Math.sqrt(vHat) + 1e-8);
+            }
+            if (t % 100 == 0) {
+                System.out.println("iteration " + t + ": loss " + loss(weights));
+            }
+        }
+        return weights;
+    }
+
+    /**
+     * @return the gradient of the mean squared error, summed over chunks in parallel.
+     */
+    private double[] gradient(double[] weights) {
+        double[] gradient = IntStream.range(0, chunks()).parallel().mapToObj(c -> {
+            double[] g = new double[EvalWeights.SIZE];
+            for (int p = c * CHUNK, end = Math.min(size, p + CHUNK); p < end; p++) {
+                double predicted = sigmoid(score(weights, p));
+                double d = -2 * (results[p] - predicted) * predicted * (1 - predicted) * scale;
+                for (int i = 0; i < EvalWeights.SIZE; i++) {
+                    g[i] += d * features[p * EvalWeights.SIZE + i];
+                }
+            }
+            return g;
+        }).reduce(new double[EvalWeights.SIZE], (a, b) -> {
+            double[] sum = new double[EvalWeights.SIZE];
+            for (int i = 0; i < EvalWeights.SIZE; i++) {
+                sum[i] = a[i] + b[i];
+            }
+            return sum;
+        });
+        for (int i = 0; i < EvalWeights.SIZE; i++) {
+            gradient[i] /= size;
+        }
+        return gradient;
+    }
+
+    private double score(double[] weights, int p) {
+        double score = 0;
+        for (int i = 0, at = p * EvalWeights.SIZE; i < EvalWeights.SIZE; i++) {
+            score += weights[i] * features[at + i];
+        }
+        return score;
+    }
+
+    private double sigmoid(double score) {
+        return 1 / (1 + Math.exp(-scale * score));
+    }
+
+    private int chunks() {
+        return (size + CHUNK - 1) / CHUNK;
+    }
+}
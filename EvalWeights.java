@@ -0,0 +1,132 @@
+package threeChess.agents;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.Properties;
+
+/**
+ * The weights of the terms of {@link SmartAgent#evaluate}, so they can be tuned
+ * offline by {@link EvalTuner} and loaded from a file at agent startup.
+ * The file is a properties file with one entry per term name.
+ */
+public final class EvalWeights {
+
+    public static final int CHECK_NUM = 0;
+    public static final int OPP_CHECK = 1;
+    public static final int CURR_CHECK = 2;
+    public static final int KING = 3;
+    public static final int QUEEN = 4;
+    public static final int ROOK = 5;
+    public static final int MINOR = 6;
+    public static final int PAWN = 7;
+    public static final int PAWN_STRUCTURE = 8;
+    public static final int MOBILITY = 9;
+    public static final int SIZE = 10;
+
+    public static final String[] NAMES = { "checkNum", "oppCheck", "currCheck", "king", "queen", "rook", "minor",
+            "pawn", "pawnStructure", "mobility" };
+
+    // 1.5, 1, 1
+    // 2.5, 0.25, 1.5
+    private static final double[] DEFAULTS = { 2.65, 0.25, 1.75, 500, 9, 5, 3, 1, 0.5, 0.1 };
+    private static final String DEFAULT_PATH = "smartagent.weights";
+    private static volatile EvalWeights shared;
+
+    private final double[] weights;
+
+    public EvalWeights(double[] weights) {
+        this.weights = weights.clone();
+    }
+
+    /**
+     * @return the hand tuned weights.
+     */
+    public static EvalWeights defaults() {
+        return new EvalWeights(DEFAULTS);
+    }
+
+    /**
+     * @return the weights in the file named by the threeChess.weights system property
+     *         (or smartagent.weights in the working directory), or the defaults if
+     *         there is no such file. The file is read once per JVM.
+     */
+    public static EvalWeights shared() {
+        if (shared == null) {
+            synchronized (EvalWeights.class) {
+                if (shared == null) {
+                    Path path = Paths.get(System.getProperty("threeChess.weights", DEFAULT_PATH));
+                    EvalWeights loaded = defaults();
+                    if (Files.isReadable(path)) {
+                        try {
+                            loaded = load(path);
+                        } catch (IOException | NumberFormatException e) {
+                        }
+                    }
+                    shared = loaded;
+                }
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Reads weights from a file; terms missing from the file keep their default.
+     * 
+     * @param path the weights file.
+     * @return the weights.
+     * @throws IOException if the file cannot be read.
+     */
+    public static EvalWeights load(Path path) throws IOException {
+        Properties properties = new Properties();
+        try (Reader in = Files.newBufferedReader(path)) {
+            properties.load(in);
+        }
+        double[] weights = DEFAULTS.clone();
+        for (int i = 0; i < SIZE; i++) {
+            String value = properties.getProperty(NAMES[i]);
+            if (value != null) {
+                weights[i] = Double.parseDouble(value.trim());
+            }
+        }
+        return new EvalWeights(weights);
+    }
+
+    /**
+     * @param path the file to write the weights to.
+     * @throws IOException if the file cannot be written.
+     */
+    public void save(Path path) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(path))) {
+            for (int i = 0; i < SIZE; i++) {
+                out.println(NAMES[i] + "=" + weights[i]);
+            }
+        }
+    }
+
+    /**
+     * @param i the index of a term.
+     * @return the weight of that term.
+     */
+    public double get(int i) {
+        return weights[i];
+    }
+
+    /**
+     * @return a copy of all the weights, indexed by term.
+     */
+    public double[] toArray() {
+        return weights.clone();
+    }
+
+    /**
+     * @param features the value of each term, indexed as the weights.
+     * @return the weighted sum of the terms.
+     */
+    public double score(double[] features) {
+        double score = 0;
+        for (int i = 0; i < SIZE; i++) {
+            score += weights[i] * features[i];
+        }
+        return score;
+    }
+}
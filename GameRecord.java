@@ -0,0 +1,202 @@
+package threeChess.agents;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import threeChess.*;
+
+/**
+ * A finished three player game from the standard starting position: every move as
+ * a {@link PackedMove}, the time and search statistics of each move and the result.
+ * 
+ * Binary layout of one record (see {@link GameRecordWriter} and {@link GameRecordReader}):
+ * int length of the rest of the record, byte version, byte flags (reserved, always 0),
+ * byte winner, byte loser, int plies, then per ply
+ * {int move, int millis, int playouts, float eval}. Colours are written as their
+ * ordinal, or -1 if there is none.
+ */
+public final class GameRecord {
+
+    public static final byte VERSION = 1;
+    public static final int PLY_BYTES = 16;
+    private static final Position[] squares = Position.values();
+
+    public final int[] moves;
+    public final int[] millis;
+    public final int[] playouts;
+    public final float[] evals;
+    public final Colour winner;
+    public final Colour loser;
+
+    public GameRecord(int[] moves, int[] millis, int[] playouts, float[] evals, Colour winner,
+            Colour loser) {
+        this.moves = moves;
+        this.millis = millis;
+        this.playouts = playouts;
+        this.evals = evals;
+        this.winner = winner;
+        this.loser = loser;
+    }
+
+    /**
+     * Builds the record of a game that started from the standard position.
+     * 
+     * @param finalBoard the end position of the board, holding the move history.
+     * @param log        the statistics of the moves as they were played, or null.
+     * @return the record of the game.
+     */
+    public static GameRecord fromBoard(Board finalBoard, Log log) {
+        return fromBoard(finalBoard, log, finalBoard.getWinner(), finalBoard.getLoser());
+    }
+
+    /**
+     * Builds the record of a game that started from the standard position and was
+     * decided off the board, such as by a forfeit.
+     * 
+     * @param finalBoard the end position of the board, holding the move history.
+     * @param log        the statistics of the moves as they were played, or null.
+     * @param winner     the winner, or null.
+     * @param loser      the loser, or null.
+     * @return the record of the game.
+     */
+    public static GameRecord fromBoard(Board finalBoard, Log log, Colour winner, Colour loser) {
+        int plies = finalBoard.getMoveCount();
+        int[] moves = new int[plies];
+        for (int i = 0; i < plies; i++) {
+            Position[] move = finalBoard.getMove(i);
+            moves[i] = PackedMove.encode(move[0], move[1]);
+        }
+        Log stats = log != null ? log : new Log();
+        return new GameRecord(moves, Arrays.copyOf(stats.millis, plies), Arrays.copyOf(stats.playouts, plies),
+                Arrays.copyOf(stats.evals, plies), winner, loser);
+    }
+
+    /**
+     * Encodes the piece on every square of a board, one byte per square:
+     * 0 for empty, otherwise 1 + colour * 6 + piece type.
+     * 
+     * @param board The representation of the game state.
+     * @return the placement of the pieces.
+     */
+    public static byte[] placement(Board board) {
+        byte[] placement = new byte[squares.length];
+        for (Colour colour : Colour.values()) {
+            for (Position square : board.getPositions(colour)) {
+                placement[square.ordinal()] = (byte) (1 + colour.ordinal() * PieceType.values().length
+                        + board.getPiece(square).getType().ordinal());
+            }
+        }
+        return placement;
+    }
+
+    /**
+     * Replays the first moves of the game.
+     * 
+     * @param plies the number of moves to play.
+     * @return the board after those moves.
+     * @throws ImpossiblePositionException if a move could not be played.
+     */
+    public Board replay(int plies) throws ImpossiblePositionException {
+        Board board = new Board(0);
+        for (int i = 0; i < plies && i < moves.length; i++) {
+            board.move(PackedMove.from(moves[i]), PackedMove.to(moves[i]));
+        }
+        return board;
+    }
+
+    /**
+     * @return the number of bytes this record takes when written.
+     */
+    public int encodedSize() {
+        return 4 + 2 + 2 + 4 + moves.length * PLY_BYTES;
+    }
+
+    void writeTo(ByteBuffer buffer) {
+        buffer.putInt(encodedSize() - 4);
+        buffer.put(VERSION);
+        buffer.put((byte) 0);
+        buffer.put((byte) (winner != null ? winner.ordinal() : -1));
+        buffer.put((byte) (loser != null ? loser.ordinal() : -1));
+        buffer.putInt(moves.length);
+        for (int i = 0; i < moves.length; i++) {
+            buffer.putInt(moves[i]).putInt(millis[i]).putInt(playouts[i]).putFloat(evals[i]);
+        }
+    }
+
+    /**
+     * Decodes one record, the buffer being positioned just after the length field.
+     */
+    static GameRecord readFrom(ByteBuffer buffer) {
+        if (buffer.get() != VERSION) {
+            throw new IllegalStateException("unknown game record version");
+        }
+        if (buffer.get() != 0) {
+            throw new IllegalStateException("unknown game record flags");
+        }
+        byte w = buffer.get();
+        byte l = buffer.get();
+        int plies = buffer.getInt();
+        int[] moves = new int[plies];
+        int[] millis = new int[plies];
+        int[] playouts = new int[plies];
+        float[] evals = new float[plies];
+        for (int i = 0; i < plies; i++) {
+            moves[i] = buffer.getInt();
+            millis[i] = buffer.getInt();
+            playouts[i] = buffer.getInt();
+            evals[i] = buffer.getFloat();
+        }
+        return new GameRecord(moves, millis, playouts, evals, w < 0 ? null : Colour.values()[w],
+                l < 0 ? null : Colour.values()[l]);
+    }
+
+    /**
+     * The per move statistics an agent collects during a game, indexed by ply.
+     */
+    public static final class Log {
+        private int[] millis = new int[64];
+        private int[] playouts = new int[64];
+        private float[] evals = new float[64];
+
+        /**
+         * @param ply      the index of the move in the game.
+         * @param millis   the time spent choosing the move.
+         * @param playouts the number of simulations or positions searched.
+         * @param eval     the agent's evaluation of the chosen move.
+         */
+        public void record(int ply, long millis, int playouts, double eval) {
+            if (ply >= this.millis.length) {
+                int size = Math.max(ply + 1, this.millis.length * 2);
+                this.millis = Arrays.copyOf(this.millis, size);
+                this.playouts = Arrays.copyOf(this.playouts, size);
+                this.evals = Arrays.copyOf(this.evals, size);
+            }
+            this.millis[ply] = (int) millis;
+            this.playouts[ply] = playouts;
+            this.evals[ply] = (float) eval;
+        }
+
+        /**
+         * Records a move with the search statistics of the agent that played it, if
+         * it keeps any.
+         *
+         * @param ply    the index of the move in the game.
+         * @param millis the time spent choosing the move.
+         * @param agent  the agent that chose the move.
+         */
+        public void record(int ply, long millis, Agent agent) {
+            int playouts = 0;
+            double eval = 0.0;
+            if (agent instanceof SearchStatistics) {
+                playouts = ((SearchStatistics) agent).lastPlayouts();
+                eval = ((SearchStatistics) agent).lastEval();
+            }
+            record(ply, millis, playouts, eval);
+        }
+
+        public void clear() {
+            Arrays.fill(millis, 0);
+            Arrays.fill(playouts, 0);
+            Arrays.fill(evals, 0f);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package threeChess.agents;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+/**
+ * Streams {@link GameRecord}s back from a file written by {@link GameRecordWriter},
+ * reading it sequentially through a large direct buffer.
+ */
+public class GameRecordReader implements Closeable {
+
+    private static final int BUFFER_BYTES = 1 << 20;
+
+    private final FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+
+    /**
+     * @param path the file to read.
+     * @throws IOException if the file cannot be opened.
+     */
+    public GameRecordReader(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        buffer.limit(0);
+    }
+
+    /**
+     * @return the next game in the file, or null at the end of the file.
+     * @throws IOException if the file cannot be read or ends part way through a record.
+     */
+    public GameRecord next() throws IOException {
+        if (!fill(4)) {
+            return null;
+        }
+        int length = buffer.getInt();
+        if (!fill(length)) {
+            throw new IOException("truncated game record");
+        }
+        int end = buffer.position() + length;
+        GameRecord record = GameRecord.readFrom(buffer);
+        buffer.position(end);
+        return record;
+    }
+
+    /**
+     * Makes sure at least the given number of bytes are buffered.
+     * 
+     * @return false if the file ended first.
+     */
+    private boolean fill(int bytes) throws IOException {
+        if (buffer.remaining() >= bytes) {
+            return true;
+        }
+        if (bytes > buffer.capacity()) {
+            ByteBuffer larger = ByteBuffer.allocateDirect(bytes);
+            larger.put(buffer);
+            buffer = larger;
+        } else {
+            buffer.compact();
+        }
+        while (buffer.position() < bytes) {
+            if (channel.read(buffer) < 0) {
+                buffer.flip();
+                return false;
+            }
+        }
+        buffer.flip();
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Replays every game in a file and prints a summary of each.
+     * 
+     * Usage: GameRecordReader file
+     */
+    public static void main(String[] args) throws Exception {
+        try (GameRecordReader reader = new GameRecordReader(Paths.get(args[0]))) {
+            int games = 0;
+            for (GameRecord record = reader.next(); record != null; record = reader.next()) {
+                long playouts = 0;
+                for (int p : record.playouts) {
+                    playouts += p;
+                }
+                boolean end = record.replay(record.moves.length).gameOver();
+                System.out.println("game " + games++ + ": " + record.moves.length + " plies, winner " + record.winner
+                        + ", loser " + record.loser + ", playouts " + playouts + ", replayed to end " + end);
+            }
+        }
+    }
+}
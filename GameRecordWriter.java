@@ -0,0 +1,107 @@
+package threeChess.agents;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Appends {@link GameRecord}s to a file through a large direct buffer, so that
+ * millions of games are written with a few sequential writes.
+ * A writer is safe to share between many concurrent games.
+ */
+public class GameRecordWriter implements Closeable {
+
+    private static final int BUFFER_BYTES = 1 << 20;
+    private static final Map<Path, GameRecordWriter> writers = new ConcurrentHashMap<>();
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+
+    /**
+     * @param path the file to append to, created if missing.
+     * @throws IOException if the file cannot be opened.
+     */
+    public GameRecordWriter(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Returns the writer shared by every game harness recording to the file named by
+     * the threeChess.record system property, flushed when the JVM exits.
+     * 
+     * @return the shared writer, or null if recording is not enabled.
+     */
+    public static GameRecordWriter shared() {
+        String file = System.getProperty("threeChess.record");
+        if (file == null) {
+            return null;
+        }
+        return writers.computeIfAbsent(Paths.get(file).toAbsolutePath(), path -> {
+            try {
+                GameRecordWriter writer = new GameRecordWriter(path);
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        writer.close();
+                    } catch (IOException e) {
+                    }
+                }));
+                return writer;
+            } catch (IOException e) {
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Buffers one record, writing the buffer out first if it is full.
+     * 
+     * @param record the game to append.
+     * @throws IOException if the file cannot be written.
+     */
+    public synchronized void write(GameRecord record) throws IOException {
+        int size = record.encodedSize();
+        if (size > buffer.remaining()) {
+            drain();
+        }
+        if (size > buffer.capacity()) {
+            ByteBuffer large = ByteBuffer.allocate(size);
+            record.writeTo(large);
+            large.flip();
+            while (large.hasRemaining()) {
+                channel.write(large);
+            }
+            return;
+        }
+        record.writeTo(buffer);
+    }
+
+    /**
+     * Writes all buffered records to the file.
+     * 
+     * @throws IOException if the file cannot be written.
+     */
+    public synchronized void flush() throws IOException {
+        drain();
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel.isOpen()) {
+            drain();
+            channel.close();
+        }
+    }
+}
@@ -1,17 +1,42 @@
 package threeChess.agents;
 
 import java.util.*;
+import java.util.concurrent.*;
 import threeChess.*;
 
-public class SmartAgent extends Agent {
+public class SmartAgent extends Agent implements SearchStatistics, AnytimeSearch {
 
     private String name = "SmartAgent";
     private final Direction[] neighbours = { Direction.FORWARD, Direction.BACKWARD, Direction.LEFT, Direction.RIGHT };
+    /** The longest playMove waits for the search before taking its best move so far. */
+    private static final long MOVE_TIME = 1000;
+
+    private final boolean ponder;
+    private ExecutorService ponderThread;
+    private Future<?> pondering;
+    private volatile boolean stopPondering;
+    private ExecutorService searchThread;
+    private Future<?> searching;
+    private final Map<Long, Position[]> pondered = new ConcurrentHashMap<>();
+    private final EvalWeights weights = EvalWeights.shared();
+    private Position[] lastMove;
+    private double lastEval;
+    private int lastPlayouts;
 
     /**
      * A no argument constructor, required for tournament management.
+     * Pondering is enabled by the threeChess.ponder system property.
      **/
     public SmartAgent(){
+        this(Boolean.getBoolean("threeChess.ponder"));
+    }
+
+    /**
+     * @param ponder whether to predict the opponents' replies in a background thread
+     *               and prepare our answer to the predicted position.
+     **/
+    public SmartAgent(boolean ponder) {
+        this.ponder = ponder;
     }
 
     /**
@@ -26,31 +51,234 @@ public class SmartAgent extends Agent {
      *         is the position to move that piece to.
      **/
     public Position[] playMove(Board board) {
-        Set<Position[]> MylegalMoves = makeLegalMoves(board, board.getTurn());
+        return search(board).await(MOVE_TIME);
+    }
+
+    /**
+     * Starts choosing a move in a background thread. The handle publishes each
+     * improvement on the best evaluated move, and the search stops before
+     * evaluating another move once it is cancelled.
+     * 
+     * @param board The representation of the game state.
+     * @return a handle on the running search.
+     */
+    public SearchHandle search(Board board) {
+        joinSearch();
+        if (searchThread == null) {
+            searchThread = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "smart-search");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return search(board, searchThread);
+    }
+
+    public SearchHandle search(Board board, Executor executor) {
+        joinSearch();
+        SearchHandle handle = new SearchHandle();
+        try {
+            Board root = getGame(board);
+            searching = CompletableFuture.runAsync(() -> {
+                try {
+                    chooseMove(root, handle);
+                } finally {
+                    handle.finish(null, 0.0, 0);
+                }
+            }, executor);
+        } catch (CloneNotSupportedException e) {
+            handle.finish(null, 0.0, 0);
+        }
+        return handle;
+    }
+
+    /**
+     * Waits for the last search started by {@link #search} to finish.
+     */
+    private void joinSearch() {
+        if (searching != null) {
+            try {
+                searching.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+            }
+            searching = null;
+        }
+    }
+
+    /**
+     * Chooses a move and publishes it on the handle, then starts pondering.
+     * 
+     * @param board  The representation of the game state.
+     * @param handle the handle of the search.
+     */
+    private void chooseMove(Board board, SearchHandle handle) {
+        stopPondering();
+        Position[] move = null;
+        if (ponder) {
+            Position[] hit = pondered.get(ZobristHash.hash(board));
+            if (hit != null && board.isLegalMove(hit[0], hit[1])) {
+                move = handle.finish(hit, 0.0, 0);
+                lastEval = 0.0;
+                lastPlayouts = 0;
+            }
+            pondered.clear();
+        }
+        if (move == null) {
+            ScoreDirections best = bestMove(board, handle);
+            move = handle.finish(best.move, best.eval, best.score);
+            lastEval = best.eval;
+            lastPlayouts = best.score;
+        }
+        lastMove = move;
+        if (ponder && move != null) {
+            startPondering(board, move);
+        }
+    }
+
+    /**
+     * Finds the move with the best evaluation for the player whose turn it is.
+     * 
+     * @param board  The representation of the game state.
+     * @param handle where to publish each improvement and look for cancellation, or null.
+     * @return the chosen move, its evaluation and the number of moves evaluated.
+     **/
+    private ScoreDirections bestMove(Board board, SearchHandle handle) {
+        PieceList rootPieces = PieceList.of(board);
+        StagedMoves staged = new StagedMoves(board, rootPieces);
+        Position[] move = staged.next();
+        if (staged.stage() == StagedMoves.KING_CAPTURE) {// taking a king ends the game, no need to search.
+            return new ScoreDirections(Double.MAX_VALUE, 1, move);
+        }
+        Position[] solved = EndgameTable.bestMove(board, rootPieces);
+        if (solved != null) {// the endgame is solved, no need to search either.
+            float[] result = new float[3];
+            EndgameTable.result(rootPieces, EndgameTable.distance(rootPieces, board.getTurn()), result);
+            return new ScoreDirections((double) result[board.getTurn().ordinal()], 1, solved);
+        }
+        if (handle != null) {
+            handle.publish(move, 0.0, 0);
+        }
+        List<Position[]> MylegalMoves = staged.rest();
+        MylegalMoves.add(0, move);
         Double maxeval = Double.MIN_VALUE;
         double eval;
-        Position[] move = MylegalMoves.iterator().next();
         Colour myTurn = board.getTurn();
+        boolean[] threatened = threatened(board, rootPieces, myTurn);
+        int searched = 0;
         try {
             for (Position[] moves : MylegalMoves) {
+                if (handle != null && handle.isCancelled()) {
+                    break;
+                }
                 Board cpyGame = getGame(board);
                 cpyGame.move(moves[0], moves[1]);
-                if (cpyGame.getWinner() == myTurn) {
-                    return new Position[] { moves[0], moves[1] };
-                }
-                Set<Position[]> temp_legalMoves = makeLegalMoves(cpyGame, myTurn);
-                eval = evaluate(cpyGame, myTurn, temp_legalMoves.size(),
-                        isCheck(cpyGame, moves[1], moves[0], myTurn, 1),
-                        isCheck(cpyGame, moves[1], moves[0], myTurn, 2), isCheck(board, moves[1], moves[0], myTurn, 3));
+                PieceList pieces = rootPieces.copy();
+                pieces.move(cpyGame, moves[0], moves[1]);
+                searched++;
+                eval = evaluate(cpyGame, pieces, myTurn, numLegalMoves(cpyGame, pieces, myTurn),
+                        isCheck(cpyGame, pieces, moves[1], moves[0], myTurn, 1),
+                        isCheck(cpyGame, pieces, moves[1], moves[0], myTurn, 2),
+                        threatened[moves[0].ordinal()] ? board.getPiece(moves[0]).getValue() : 0);
                 // System.out.println(moves[0]+" -> "+moves[1]+" = "+eval);
                 if (eval > maxeval) {
                     maxeval = eval;
                     move = new Position[] { moves[0], moves[1] };
+                    if (handle != null) {
+                        handle.publish(move, eval, searched);
+                    }
                 }
             }
         } catch (CloneNotSupportedException | ImpossiblePositionException e) {
         }
-        return move;
+        return new ScoreDirections(maxeval, searched, move);
+    }
+
+    /**
+     * A private class used to return a move together with its evaluation.
+     */
+    private class ScoreDirections {
+        public double eval;
+        public Integer score;
+        public Position[] move;
+
+        private ScoreDirections(Double eval, Integer score, Position[] move) {
+            this.eval = eval;
+            this.score = score;
+            this.move = move;
+        }
+    }
+
+    /**
+     * SmartAgent searches one ply, so only the chosen move is reported.
+     */
+    public Map<Position[], Integer> lastVisits() {
+        joinSearch();
+        return lastMove == null ? Collections.emptyMap() : Collections.singletonMap(lastMove, 1);
+    }
+
+    public double lastEval() {
+        joinSearch();
+        return lastEval;
+    }
+
+    public int lastPlayouts() {
+        joinSearch();
+        return lastPlayouts;
+    }
+
+    /**
+     * Predicts each opponent's reply in a background thread, by assuming they play
+     * the move this agent would play in their place, and stores our answer to the
+     * predicted position. The next call to playMove uses it if the prediction was right.
+     * 
+     * @param board The representation of the game state.
+     * @param move  the move we are about to play.
+     */
+    private void startPondering(Board board, Position[] move) {
+        if (ponderThread == null) {
+            ponderThread = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "smart-ponder");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        stopPondering = false;
+        pondering = ponderThread.submit(() -> {
+            try {
+                Board predicted = getGame(board);
+                predicted.move(move[0], move[1]);
+                for (int i = 0; i < 2 && !stopPondering && !predicted.gameOver(); i++) {
+                    Position[] reply = bestMove(predicted, null).move;
+                    predicted.move(reply[0], reply[1]);
+                }
+                if (!stopPondering && !predicted.gameOver()) {
+                    Position[] answer = bestMove(predicted, null).move;
+                    if (!stopPondering) {
+                        pondered.put(ZobristHash.hash(predicted), answer);
+                    }
+                }
+            } catch (CloneNotSupportedException | ImpossiblePositionException e) {
+            }
+        });
+    }
+
+    /**
+     * Stops the background prediction and waits for its current evaluation to
+     * finish, so it never runs on our clock or alongside the next prediction.
+     */
+    private void stopPondering() {
+        stopPondering = true;
+        if (pondering != null) {
+            try {
+                pondering.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+            }
+            pondering = null;
+        }
     }
 
     /**
@@ -72,28 +300,36 @@ public class SmartAgent extends Agent {
      * @return a value based on the selected heuristic.
      */
     public int isCheck(Board board, Position end, Position original, Colour turn, int t) {
+        return isCheck(board, PieceList.of(board), end, original, turn, t);
+    }
+
+    /**
+     * As {@link #isCheck(Board, Position, Position, Colour, int)}, reading piece
+     * locations from an index kept with the board.
+     * 
+     * @param pieces The index of the pieces on the board.
+     */
+    public int isCheck(Board board, PieceList pieces, Position end, Position original, Colour turn, int t) {
         Colour MyTurn = turn;
         int CurVal = 0;
         if (t == 1) {
-            Set<Position> myPieces = board.getPositions(turn);
             for (int i = 0; i < 2; i++) {
                 turn = Colour.values()[(turn.ordinal() + 1) % 3];
-                for (Position[] moves : makeLegalMoves(board, turn)) {
+                for (Position[] moves : makeLegalMoves(board, pieces, turn)) {
                     if (moves[1] == end && -board.getPiece(moves[1]).getValue() < CurVal) {
                         CurVal = -board.getPiece(end).getValue();
                     }
-                    if (myPieces.contains(moves[1]) && -board.getPiece(moves[1]).getValue() < CurVal) {
+                    if (pieces.colourAt(moves[1]) == MyTurn && -board.getPiece(moves[1]).getValue() < CurVal) {
                         CurVal = -board.getPiece(moves[1]).getValue();
                     }
                 }
             }
         } else if (t == 2) {
-            for (Position[] moves : makeLegalMoves(board, MyTurn)) {
+            for (Position[] moves : makeLegalMoves(board, pieces, MyTurn)) {
                 if (moves[0] == end) {
                     for (int i = 0; i < 2; i++) {
                         turn = Colour.values()[(turn.ordinal() + 1) % 3];
-                        Set<Position> pieces = board.getPositions(turn);
-                        if (pieces.contains(moves[1]) && board.getPiece(moves[1]).getValue() > CurVal) {
+                        if (pieces.colourAt(moves[1]) == turn && board.getPiece(moves[1]).getValue() > CurVal) {
                             CurVal = board.getPiece(moves[1]).getValue();
                         }
                     }
@@ -101,26 +337,19 @@ public class SmartAgent extends Agent {
             }
             return CurVal;
         } else if (t == 3) {
-            for (int i = 0; i < 2; i++) {
-                turn = Colour.values()[(turn.ordinal() + 1) % 3];
-                for (Position[] moves : makeLegalMoves(board, turn)) {
-                    if (moves[1] == original) {
-                        return board.getPiece(original).getValue();
-                    }
-                }
+            if (threatened(board, pieces, MyTurn)[original.ordinal()]) {
+                return board.getPiece(original).getValue();
             }
         } else if (t == 4) {
-            Set<Position> pn = board.getPositions(turn);
-            Position x = pn.iterator().next();
-            for (Position p : pn) {
-                if (board.getPiece(p).getType() == PieceType.KING) {
-                    x = p;
-                }
+            Position x = pieces.king(turn);
+            if (x == null) {
+                return CurVal;
             }
             for (Direction[] steps : PieceType.KING.getSteps()) {
                 try {
-                    if (pn.contains(board.step(board.getPiece(x), steps, x))) {
-                        CurVal += board.getPiece(board.step(board.getPiece(x), steps, x)).getValue();
+                    Position guard = board.step(board.getPiece(x), steps, x);
+                    if (pieces.colourAt(guard) == turn) {
+                        CurVal += board.getPiece(guard).getValue();
                     }
                 } catch (ImpossiblePositionException e) {
                 }
@@ -129,6 +358,27 @@ public class SmartAgent extends Agent {
         return CurVal;
     }
 
+    /**
+     * Finds the squares either opponent has a legal move to, which is the t = 3 term
+     * of {@link #isCheck} for a piece on each square. It depends only on the position
+     * before the move, so a search computes it once for all of its moves.
+     * 
+     * @param board  The representation of the game state.
+     * @param pieces The index of the pieces on the board.
+     * @param turn   The turn of the current player.
+     * @return a flag per Position ordinal.
+     */
+    private boolean[] threatened(Board board, PieceList pieces, Colour turn) {
+        boolean[] threatened = new boolean[Position.values().length];
+        for (int i = 0; i < 2; i++) {
+            turn = Colour.values()[(turn.ordinal() + 1) % 3];
+            for (Position[] moves : makeLegalMoves(board, pieces, turn)) {
+                threatened[moves[1].ordinal()] = true;
+            }
+        }
+        return threatened;
+    }
+
     /**
      * Generates a set of Position arrays which are all legal moves in the current
      * state of the game board.
@@ -138,10 +388,19 @@ public class SmartAgent extends Agent {
      *         the current game state.
      */
     public Set<Position[]> makeLegalMoves(Board board, Colour turn) {
+        return makeLegalMoves(board, PieceList.of(board), turn);
+    }
+
+    /**
+     * As {@link #makeLegalMoves(Board, Colour)}, reading piece locations from an
+     * index kept with the board.
+     * 
+     * @param pieces The index of the pieces on the board.
+     */
+    public Set<Position[]> makeLegalMoves(Board board, PieceList pieces, Colour turn) {
         Set<Position[]> legalMoves = new HashSet<>();
-        Position[] pieces = board.getPositions(turn).toArray(new Position[0]);
-        for (Position square : pieces) {
-            Position end = pieces[0];
+        for (Position square : pieces.positions(turn)) {
+            Position end;
             Piece mover = board.getPiece(square);
             Direction[][] steps = mover.getType().getSteps();
             int reps = mover.getType().getStepReps();
@@ -172,10 +431,19 @@ public class SmartAgent extends Agent {
      *         the current game state.
      */
     public int numLegalMoves(Board board, Colour turn) {
+        return numLegalMoves(board, PieceList.of(board), turn);
+    }
+
+    /**
+     * As {@link #numLegalMoves(Board, Colour)}, reading piece locations from an
+     * index kept with the board.
+     * 
+     * @param pieces The index of the pieces on the board.
+     */
+    public int numLegalMoves(Board board, PieceList pieces, Colour turn) {
         int count = 0;
-        Position[] pieces = board.getPositions(turn).toArray(new Position[0]);
-        for (Position square : pieces) {
-            Position end = pieces[0];
+        for (Position square : pieces.positions(turn)) {
+            Position end;
             Piece mover = board.getPiece(square);
             Direction[][] steps = mover.getType().getSteps();
             int reps = mover.getType().getStepReps();
@@ -198,7 +466,8 @@ public class SmartAgent extends Agent {
     }
 
     /**
-     * A function which evalutes a move based on a formula.
+     * A function which evalutes a move based on a formula, with the term weights
+     * loaded at startup (see {@link EvalWeights}).
      * 
      * @param board     The representation of the game state.
      * @param myPlayer  The colour representation of whose pieces are being
@@ -213,30 +482,73 @@ public class SmartAgent extends Agent {
      * 
      */
     public double evaluate(Board board, Colour myPlayer, int moves, int checkNum, int OppCheck, int CurrCheck) {
-        // 1.5, 1, 1
-        // 2.5, 0.25, 1.5
-        double score = 2.65 * checkNum + 0.25 * OppCheck + 1.75 * CurrCheck;
+        return evaluate(board, PieceList.of(board), myPlayer, moves, checkNum, OppCheck, CurrCheck);
+    }
+
+    /**
+     * As {@link #evaluate(Board, Colour, int, int, int, int)}, reading piece
+     * locations from an index kept with the board.
+     * 
+     * @param pieces The index of the pieces on the board.
+     */
+    public double evaluate(Board board, PieceList pieces, Colour myPlayer, int moves, int checkNum, int OppCheck,
+            int CurrCheck) {
+        return weights.score(features(board, pieces, myPlayer, moves, checkNum, OppCheck, CurrCheck));
+    }
+
+    /**
+     * Computes the unweighted terms of {@link #evaluate}, indexed as in {@link EvalWeights}.
+     * The evaluation is linear in these terms, which is what lets {@link EvalTuner} fit
+     * the weights.
+     * 
+     * @param board     The representation of the game state.
+     * @param myPlayer  The colour representation of whose pieces are being
+     *                  calculated.
+     * @param moves     Number of possible moves of our player.
+     * @param checkNum  the greatest worth piece under threat of capture, given the
+     *                  move.
+     * @param OppCheck  the greatest worth opponent piece under thret of after,
+     *                  given the move.
+     * @param CurrCheck the greatest worth piece currently under threat of capture.
+     * @return the value of each term of the evaluation.
+     */
+    public double[] features(Board board, Colour myPlayer, int moves, int checkNum, int OppCheck, int CurrCheck) {
+        return features(board, PieceList.of(board), myPlayer, moves, checkNum, OppCheck, CurrCheck);
+    }
+
+    /**
+     * As {@link #features(Board, Colour, int, int, int, int)}, reading piece
+     * locations from an index kept with the board.
+     * 
+     * @param pieces The index of the pieces on the board.
+     */
+    public double[] features(Board board, PieceList pieces, Colour myPlayer, int moves, int checkNum, int OppCheck,
+            int CurrCheck) {
+        double[] f = new double[EvalWeights.SIZE];
+        f[EvalWeights.CHECK_NUM] = checkNum;
+        f[EvalWeights.OPP_CHECK] = OppCheck;
+        f[EvalWeights.CURR_CHECK] = CurrCheck;
         Integer MynumOfLegalMoves = moves;
-        Map<PieceType, Integer> MyPieceCount = countPieces(board, myPlayer);
-        Map<String, Integer> MyPawns = countPawns(board, PiecePos(PieceType.PAWN, board, myPlayer));
+        Map<PieceType, Integer> MyPieceCount = countPieces(pieces, myPlayer);
+        Map<String, Integer> MyPawns = countPawns(board, PiecePos(PieceType.PAWN, pieces, myPlayer));
         Colour turn = myPlayer;
         for (int i = 0; i < 2; i++) {
             turn = Colour.values()[(turn.ordinal() + 1) % 3];
-            Map<PieceType, Integer> PieceCount = countPieces(board, turn);
-            Map<String, Integer> Pawns = countPawns(board, PiecePos(PieceType.PAWN, board, turn));
-            int numOfLegalMoves = numLegalMoves(board, turn);
-            score += 500 * (MyPieceCount.get(PieceType.KING) - PieceCount.get(PieceType.KING))
-                    + 9 * (MyPieceCount.get(PieceType.QUEEN) - PieceCount.get(PieceType.QUEEN))
-                    + 5 * (MyPieceCount.get(PieceType.ROOK) - PieceCount.get(PieceType.ROOK))
-                    + 3 * ((MyPieceCount.get(PieceType.BISHOP) - PieceCount.get(PieceType.BISHOP))
-                            + (MyPieceCount.get(PieceType.KNIGHT) - PieceCount.get(PieceType.KNIGHT)))
-                    + 1 * (MyPieceCount.get(PieceType.PAWN) - PieceCount.get(PieceType.PAWN))
-                    - 0.5 * ((MyPawns.get("doubled") - Pawns.get("doubled"))
-                            + (MyPawns.get("blocked") - Pawns.get("blocked"))
-                            + (MyPawns.get("isolated") - Pawns.get("isolated")))
-                    + 0.1 * (MynumOfLegalMoves - numOfLegalMoves);
+            Map<PieceType, Integer> PieceCount = countPieces(pieces, turn);
+            Map<String, Integer> Pawns = countPawns(board, PiecePos(PieceType.PAWN, pieces, turn));
+            int numOfLegalMoves = numLegalMoves(board, pieces, turn);
+            f[EvalWeights.KING] += MyPieceCount.get(PieceType.KING) - PieceCount.get(PieceType.KING);
+            f[EvalWeights.QUEEN] += MyPieceCount.get(PieceType.QUEEN) - PieceCount.get(PieceType.QUEEN);
+            f[EvalWeights.ROOK] += MyPieceCount.get(PieceType.ROOK) - PieceCount.get(PieceType.ROOK);
+            f[EvalWeights.MINOR] += (MyPieceCount.get(PieceType.BISHOP) - PieceCount.get(PieceType.BISHOP))
+                    + (MyPieceCount.get(PieceType.KNIGHT) - PieceCount.get(PieceType.KNIGHT));
+            f[EvalWeights.PAWN] += MyPieceCount.get(PieceType.PAWN) - PieceCount.get(PieceType.PAWN);
+            f[EvalWeights.PAWN_STRUCTURE] -= (MyPawns.get("doubled") - Pawns.get("doubled"))
+                    + (MyPawns.get("blocked") - Pawns.get("blocked"))
+                    + (MyPawns.get("isolated") - Pawns.get("isolated"));
+            f[EvalWeights.MOBILITY] += MynumOfLegalMoves - numOfLegalMoves;
         }
-        return score;
+        return f;
     }
 
     /**
@@ -248,17 +560,19 @@ public class SmartAgent extends Agent {
      *         game state.
      */
     public Map<PieceType, Integer> countPieces(Board board, Colour turn) {
+        return countPieces(PieceList.of(board), turn);
+    }
+
+    /**
+     * As {@link #countPieces(Board, Colour)}, reading the counts from an index of
+     * the pieces on the board.
+     * 
+     * @param pieces The index of the pieces on the board.
+     */
+    public Map<PieceType, Integer> countPieces(PieceList pieces, Colour turn) {
         Map<PieceType, Integer> countOfPieces = new EnumMap<>(PieceType.class);
-        Position[] pieces = board.getPositions(turn).toArray(new Position[0]);
-        countOfPieces.put(PieceType.BISHOP, 0);
-        countOfPieces.put(PieceType.KING, 0);
-        countOfPieces.put(PieceType.KNIGHT, 0);
-        countOfPieces.put(PieceType.PAWN, 0);
-        countOfPieces.put(PieceType.QUEEN, 0);
-        countOfPieces.put(PieceType.ROOK, 0);
-        for (Position square : pieces) {
-            PieceType mover = board.getPiece(square).getType();
-            countOfPieces.put(mover, countOfPieces.get(mover) + 1);
+        for (PieceType type : PieceType.values()) {
+            countOfPieces.put(type, pieces.count(turn, type));
         }
         return countOfPieces;
     }
@@ -272,12 +586,19 @@ public class SmartAgent extends Agent {
      * @return A set containing all the positions for a given type of piece.
      */
     public Set<Position> PiecePos(PieceType mover, Board board, Colour turn) {
-        Set<Position> end = new HashSet<>();
-        Position[] pieces = board.getPositions(turn).toArray(new Position[0]);
-        for (Position piece : pieces) {
-            if (board.getPiece(piece).getType() == mover) {
-                end.add(piece);
-            }
+        return PiecePos(mover, PieceList.of(board), turn);
+    }
+
+    /**
+     * As {@link #PiecePos(PieceType, Board, Colour)}, reading the positions from an
+     * index of the pieces on the board.
+     * 
+     * @param pieces The index of the pieces on the board.
+     */
+    public Set<Position> PiecePos(PieceType mover, PieceList pieces, Colour turn) {
+        Set<Position> end = EnumSet.noneOf(Position.class);
+        for (int i = 0; i < pieces.count(turn, mover); i++) {
+            end.add(pieces.get(turn, mover, i));
         }
         return end;
     }
@@ -379,6 +700,25 @@ public class SmartAgent extends Agent {
      * @param finalBoard the end position of the board
      **/
     public void finalBoard(Board finalBoard) {
+        joinSearch();
+        stopPondering();
+        pondered.clear();
+        shutdown();
+    }
+
+    /**
+     * Stops the agent's threads, which are made again if it plays another game, so
+     * that a host making many agents does not keep a thread per finished game.
+     */
+    private void shutdown() {
+        if (searchThread != null) {
+            searchThread.shutdown();
+            searchThread = null;
+        }
+        if (ponderThread != null) {
+            ponderThread.shutdown();
+            ponderThread = null;
+        }
     }
 
     /**
@@ -0,0 +1,107 @@
+package threeChess.agents;
+
+import java.util.*;
+import threeChess.*;
+
+/**
+ * Answers whether a player can capture a king right now, and with which move,
+ * by walking the precomputed attack lines into the king's square instead of
+ * generating moves or cloning the board.
+ * Capturing a king wins the game, so agents use this to take wins immediately.
+ */
+public final class KingAttacks {
+
+    private KingAttacks() {
+    }
+
+    /**
+     * @param board  The representation of the game state.
+     * @param colour the colour whose king is looked for.
+     * @return the square of that colour's king, or null if it has been captured.
+     */
+    public static Position kingSquare(Board board, Colour colour) {
+        for (Position p : board.getPositions(colour)) {
+            if (board.getPiece(p).getType() == PieceType.KING) {
+                return p;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param board    The representation of the game state.
+     * @param attacker the colour that would capture.
+     * @param defender the colour whose king would be captured.
+     * @return a move {start, end} by which the attacker captures the defender's king,
+     *         or null if there is none.
+     */
+    public static Position[] captureOf(Board board, Colour attacker, Colour defender) {
+        List<Position[]> moves = new ArrayList<>(1);
+        scan(board, attacker, defender, moves, true);
+        return moves.isEmpty() ? null : moves.get(0);
+    }
+
+    /**
+     * Adds the attacker's captures of the defender's king to moves.
+     * 
+     * @param first stop after the first capture found.
+     */
+    private static void scan(Board board, Colour attacker, Colour defender, List<Position[]> moves, boolean first) {
+        Position king = kingSquare(board, defender);
+        if (king == null) {
+            return;
+        }
+        for (Rays.Line line : Rays.of(board).lines[attacker.ordinal()][king.ordinal()]) {
+            Piece piece = board.getPiece(Rays.square(line.from));
+            if (piece == null || piece.getColour() != attacker || (line.types & (1 << piece.getType().ordinal())) == 0) {
+                continue;
+            }
+            boolean clear = true;
+            for (int i = 0; i < line.between.length && clear; i++) {
+                clear = board.getPiece(Rays.square(line.between[i])) == null;
+            }
+            if (clear) {
+                moves.add(new Position[] { Rays.square(line.from), king });
+                if (first) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param board    The representation of the game state.
+     * @param attacker the colour that would capture.
+     * @param defender the colour whose king would be captured.
+     * @return true if and only if the attacker can capture the defender's king now.
+     */
+    public static boolean canCapture(Board board, Colour attacker, Colour defender) {
+        return captureOf(board, attacker, defender) != null;
+    }
+
+    /**
+     * @param board    The representation of the game state.
+     * @param attacker the colour that would capture.
+     * @return a move capturing either opponent's king, or null if there is none.
+     */
+    public static Position[] kingCapture(Board board, Colour attacker) {
+        Colour x = Colour.values()[(attacker.ordinal() + 1) % 3];
+        Position[] move = captureOf(board, attacker, x);
+        return move != null ? move : captureOf(board, attacker, Colour.values()[(x.ordinal() + 1) % 3]);
+    }
+
+    /**
+     * @param board    The representation of the game state.
+     * @param attacker the colour that would capture.
+     * @return every move {start, end} by which the attacker captures a king.
+     */
+    public static List<Position[]> kingCaptures(Board board, Colour attacker) {
+        List<Position[]> moves = new ArrayList<>();
+        for (Colour defender : Colour.values()) {
+            if (defender != attacker) {
+                scan(board, attacker, defender, moves, false);
+            }
+        }
+        return moves;
+    }
+}
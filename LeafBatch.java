@@ -0,0 +1,77 @@
+package threeChess.agents;
+
+import java.util.Arrays;
+
+/**
+ * Positions waiting to be scored by a linear model, packed as structure of arrays:
+ * the k-th active feature of every position is stored contiguously
+ * (index[k * capacity + lane]), so a vector unit can gather the weights of one
+ * feature for several positions at once.
+ *
+ * Lanes with fewer active features than the others, and lanes not in use, point at
+ * a padding index whose weight is zero.
+ */
+public final class LeafBatch {
+
+    /** Lanes are allocated in multiples of the widest float vector (512 bits). */
+    private static final int LANE_MULTIPLE = 16;
+
+    final int capacity;
+    final int rows;
+    final int pad;
+    final int[] index;
+    final float[] out;
+    int size;
+    int active;
+
+    /**
+     * @param lanes the number of positions the batch holds.
+     * @param rows  the largest number of active features of a position.
+     * @param pad   the padding index, whose weight must be zero.
+     */
+    public LeafBatch(int lanes, int rows, int pad) {
+        this.capacity = (lanes + LANE_MULTIPLE - 1) / LANE_MULTIPLE * LANE_MULTIPLE;
+        this.rows = rows;
+        this.pad = pad;
+        this.index = new int[rows * capacity];
+        this.out = new float[capacity];
+        Arrays.fill(index, pad);
+    }
+
+    /**
+     * @param features the active features of a position.
+     * @param n        the number of active features.
+     * @return the lane of the position, where its value will be found in out.
+     */
+    public int add(int[] features, int n) {
+        int lane = size++;
+        for (int k = 0; k < rows; k++) {
+            index[k * capacity + lane] = k < n ? features[k] : pad;
+        }
+        active = Math.max(active, n);
+        return lane;
+    }
+
+    /**
+     * @return the number of positions in the batch.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param lane a lane returned by {@link #add} since the batch was last scored.
+     * @return the value of the position in that lane.
+     */
+    public float value(int lane) {
+        return out[lane];
+    }
+
+    /**
+     * Empties the batch; the lanes keep valid indices.
+     */
+    public void clear() {
+        size = 0;
+        active = 0;
+    }
+}
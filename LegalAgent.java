@@ -7,11 +7,23 @@ public class LegalAgent extends Agent {
 
     private String name = "Legal";
     private HashMap<Position,Piece> ourboard = new HashMap<Position,Piece>();
+    private final SplittableRandom random;
 
     /**
      * A no argument constructor, required for tournament management.
+     * The generator is seeded from the threeChess.seed system property if it is set.
      **/
     public LegalAgent() {
+        random = Seeds.next();
+    }
+
+    /**
+     * An agent that plays the same moves in the same positions for the same seed.
+     * 
+     * @param seed the seed of the agent's random number generator.
+     **/
+    public LegalAgent(long seed) {
+        random = new SplittableRandom(seed);
     }
 
     /**
@@ -29,7 +41,7 @@ public class LegalAgent extends Agent {
         Colour turn = board.getTurn();
         updatePositions(board, turn, ourboard);
         Set<Position[]> moves = makeLegalMoves(board);
-        Position[] r_move = moves.stream().skip(new Random().nextInt(moves.size())).findFirst().orElse(null);
+        Position[] r_move = moves.stream().skip(random.nextInt(moves.size())).findFirst().orElse(null);
         ourboard.remove(r_move[0]);
         ourboard.put(r_move[1], board.getPiece(r_move[0]));
         return r_move;
@@ -44,8 +56,8 @@ public class LegalAgent extends Agent {
      *         the current game state.
      */
     public Set<Position[]> makeLegalMoves(Board board) {
-        Set<Position[]> legalMoves = new HashSet<>();
-        Set<Position> pieces = ourboard.keySet();
+        Set<Position[]> legalMoves = new LinkedHashSet<>();
+        Set<Position> pieces = new TreeSet<>(ourboard.keySet()); // in ordinal order, the same every run
         Position end = pieces.iterator().next();
         for (Position square : pieces) {
             Piece mover = board.getPiece(square);
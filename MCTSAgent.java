@@ -1,19 +1,117 @@
 package threeChess.agents;
 
 import java.util.*;
+import java.util.concurrent.*;
 import threeChess.*;
 
-public class MCTSAgent extends Agent {
+public class MCTSAgent extends Agent implements SearchStatistics, AnytimeSearch {
 
     private String name = "mcts";
     private final Direction[] neighbours = { Direction.FORWARD, Direction.BACKWARD, Direction.LEFT, Direction.RIGHT };
     private final Colour[] colours = { Colour.BLUE, Colour.GREEN, Colour.RED };
-    private static final Random random = new Random();
+    private static final double RAVE_EQUIVALENCE = 1000;
+    private static final int ROLLOUT_HORIZON = 24;
+    /** How many plies back a simulation looks for an earlier occurrence of its position. */
+    private static final int REPETITION_WINDOW = 48;
+    /** How many leaves are scored by the value model together. */
+    private static final int LEAF_BATCH = 16;
+    private static final double CAPTURE_BIAS = 0.8;
+    private static final double MATERIAL_SCALE = 10.0;
+    private static final int WIDEN_BASE = 3;
+    private static final double WIDEN_COEF = 0.5;
+    private static final long MOVE_TIME = 1000;
+    private static final long MAX_BANK = 5000;
+    /** How long past its own deadline playMove waits for the search before taking its best move so far. */
+    private static final long DEADLINE_SLACK = 50;
+    private static final int DECISION_INTERVAL = 32;
+    private static final int MIN_CONFIDENT_PLAYS = 100;
+    private static final double CRITICAL_RATIO = 0.7;
+    private static final int UNDECIDED = 0;
+    private static final int DECIDED = 1;
+    private static final int CRITICAL = 2;
+
+    private final boolean ponder;
+    private final SplittableRandom random;
+    private final int playouts;
+    private ExecutorService ponderThread;
+    private Future<?> pondering;
+    private volatile boolean stopPondering;
+    private ExecutorService searchThread;
+    private Future<?> searching;
+    private NodeTable nodes;
+    private NodeTable amaf;
+    private final boolean rave = Boolean.getBoolean("threeChess.rave");
+    private long banked;
+    private final WarmStartCache warmStart;
+    private final PolicyValueModel model = PolicyValueModel.shared();
+    private MonteCarloTreeSearch lastSearch;
+    private Board lastRoot;
+    private double lastEval;
+    private int lastPlayouts;
+    /** Prints each search's simulations, nodes, time and root moves, for tuning. */
+    private static final boolean DEBUG = Boolean.getBoolean("threeChess.debug");
 
     /**
      * A no argument constructor, required for tournament management.
+     * Pondering is enabled by the threeChess.ponder system property, and the search
+     * is warmed from the file named by the threeChess.warmStart system property.
+     * The threeChess.seed and threeChess.playouts system properties select the
+     * seeded, fixed simulation count mode of {@link #MCTSAgent(long, int)}, which
+     * never warms the search.
      **/
     public MCTSAgent() {
+        this(Boolean.getBoolean("threeChess.ponder"));
+    }
+
+    /**
+     * @param ponder whether to keep searching in a background thread during the
+     *               opponents' turns, reusing the tree on the next move.
+     **/
+    public MCTSAgent(boolean ponder) {
+        this(ponder, true);
+    }
+
+    /**
+     * @param ponder whether to keep searching in a background thread during the
+     *               opponents' turns, reusing the tree on the next move.
+     * @param warm   whether to warm the search from, and save it to, the file named
+     *               by the threeChess.warmStart system property.
+     **/
+    public MCTSAgent(boolean ponder, boolean warm) {
+        this(ponder, Seeds.next(), Integer.getInteger("threeChess.playouts", 0),
+                warm && System.getProperty("threeChess.seed") == null);
+    }
+
+    /**
+     * A reproducible agent: the same seed and number of simulations give the same
+     * moves in the same positions, whatever the speed of the machine. It does not
+     * ponder or use the warm start cache, whose contents depend on earlier runs,
+     * and playMove waits for the search however long it takes.
+     * 
+     * @param seed     the seed of the agent's random number generator.
+     * @param playouts the number of simulations per move, or 0 to search for
+     *                 the usual time.
+     **/
+    public MCTSAgent(long seed, int playouts) {
+        this(false, new SplittableRandom(seed), playouts, false);
+    }
+
+    private MCTSAgent(boolean ponder, SplittableRandom random, int playouts, boolean warm) {
+        this.ponder = ponder && playouts <= 0;
+        this.random = random;
+        this.playouts = playouts;
+        this.warmStart = !warm || System.getProperty("threeChess.warmStart") == null ? null
+                : WarmStartCache.shared(nodes());
+        if (warmStart != null) {
+            warmStart.load(nodes);
+        }
+    }
+
+    /**
+     * @return a generator of its own for a new search, split from the agent's.
+     */
+    private synchronized SplittableRandom splitRandom() {
+        return random.split();
     }
 
     /**
@@ -28,23 +126,496 @@ public class MCTSAgent extends Agent {
      *         is the position to move that piece to.
      **/
     public Position[] playMove(Board board) {
+        joinSearch();
+        SearchHandle handle = search(board);
+        if (playouts > 0) {
+            return handle.future().join();
+        }
+        return handle.await(MOVE_TIME + Math.min(banked, MOVE_TIME) + DEADLINE_SLACK);
+    }
+
+    /**
+     * Starts choosing a move in a background thread. The handle publishes the most
+     * played root move every few simulations, and the search stops within one
+     * simulation of being cancelled.
+     * 
+     * @param board The representation of the game state.
+     * @return a handle on the running search.
+     */
+    public SearchHandle search(Board board) {
+        joinSearch();
+        if (searchThread == null) {
+            searchThread = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "mcts-search");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return search(board, searchThread);
+    }
+
+    public SearchHandle search(Board board, Executor executor) {
+        joinSearch();
+        SearchHandle handle = new SearchHandle();
+        try {
+            Board root = getGame(board);
+            searching = CompletableFuture.runAsync(() -> {
+                try {
+                    chooseMove(root, handle);
+                } finally {
+                    handle.finish(null, 0.0, 0);
+                }
+            }, executor);
+        } catch (CloneNotSupportedException e) {
+            handle.finish(null, 0.0, 0);
+        }
+        return handle;
+    }
+
+    /**
+     * Chooses a move and publishes it on the handle, then updates the time bank
+     * and the statistics, and starts pondering.
+     * 
+     * @param board  The representation of the game state.
+     * @param handle the handle of the search.
+     */
+    private void chooseMove(Board board, SearchHandle handle) {
+        // the ponder thread shares the tree, so it stops before any return
+        stopPondering();
+        // no tree is searched for a book or table move, so the last one's statistics go
+        lastSearch = null;
+        lastRoot = null;
+        lastEval = 0.0;
+        lastPlayouts = 0;
+        Position[] book = OpeningBook.shared().lookup(board, splitRandom());
+        if (book != null) {
+            handle.finish(book, 0.0, 0);
+            return;
+        }
+        PieceList pieces = PieceList.of(board);
+        Position[] solved = EndgameTable.bestMove(board, pieces);
+        if (solved != null) {
+            float[] result = new float[3];
+            EndgameTable.result(pieces, EndgameTable.distance(pieces, board.getTurn()), result);
+            lastEval = result[board.getTurn().ordinal()];
+            handle.finish(solved, lastEval, 0);
+            return;
+        }
         try {
             Board x = getGame(board);
-            ScoreDirections moved = new MonteCarloTreeSearch().getBestMoveTime(x, 500, 1000, Math.sqrt(2));
-            return new Position[] { moved.PP.from, moved.PP.to };
+            MonteCarloTreeSearch mcts = new MonteCarloTreeSearch(nodes(), amaf());
+            mcts.handle = handle;
+            mcts.playouts = playouts;
+            ScoreDirections moved = mcts.getBestMoveTime(x, 500, MOVE_TIME, Math.min(banked, MOVE_TIME), Math.sqrt(2));
+            mcts.handle = null;
+            Position[] move = handle.finish(moved.move, moved.eval, moved.score);
+            banked = Math.min(MAX_BANK, Math.max(0, banked + MOVE_TIME - mcts.lastMillis));
+            lastSearch = mcts;
+            lastRoot = x;
+            lastEval = moved.eval;
+            lastPlayouts = moved.score;
+            if (ponder && move != null) {
+                startPondering(mcts, x, move);
+            }
         } catch (CloneNotSupportedException e) {
         }
-        return null;
+    }
+
+    /**
+     * Waits for the last search started by {@link #search} to finish, so the tree
+     * is never shared between two threads.
+     */
+    private void joinSearch() {
+        if (searching != null) {
+            try {
+                searching.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+            }
+            searching = null;
+        }
+    }
+
+    /**
+     * @return the node table of this agent, kept across the moves of a game and
+     *         allocated on first use.
+     */
+    private NodeTable nodes() {
+        if (nodes == null) {
+            nodes = new NodeTable();
+        }
+        return nodes;
+    }
+
+    /**
+     * @return the AMAF table of this agent, or null if RAVE is not enabled by the
+     *         threeChess.rave system property.
+     */
+    private NodeTable amaf() {
+        if (rave && amaf == null) {
+            amaf = new NodeTable();
+        }
+        return amaf;
+    }
+
+    /**
+     * Continues searching in the background from the position after our move,
+     * which explores both opponents' replies and our answers to them. The tree keys
+     * are whole game states, so whatever position the opponents actually reach,
+     * the next search picks up any statistics gathered for it.
+     * 
+     * @param mcts  the tree to keep growing.
+     * @param board the position our move was chosen from.
+     * @param move  the move we are about to play.
+     */
+    private void startPondering(MonteCarloTreeSearch mcts, Board board, Position[] move) {
+        try {
+            Board after = getGame(board);
+            after.move(move[0], move[1]);
+            if (after.gameOver()) {
+                return;
+            }
+            if (ponderThread == null) {
+                ponderThread = Executors.newSingleThreadExecutor(r -> {
+                    Thread t = new Thread(r, "mcts-ponder");
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+            stopPondering = false;
+            pondering = ponderThread.submit(() -> {
+                while (!stopPondering) {
+                    mcts.runSimulation(after, 500, Math.sqrt(2));
+                }
+                mcts.flush();
+            });
+        } catch (CloneNotSupportedException | ImpossiblePositionException e) {
+        }
+    }
+
+    /**
+     * Stops the background search and waits for its current simulation to finish,
+     * so the tree is never shared between two threads.
+     */
+    private void stopPondering() {
+        stopPondering = true;
+        if (pondering != null) {
+            try {
+                pondering.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+            }
+            pondering = null;
+        }
     }
     
+    /**
+     * Searches the position for the given time and reports how often each legal
+     * root move was played, used by {@link OpeningBookBuilder} to weight book moves.
+     * 
+     * @param board The representation of the game state.
+     * @param time  the time in milliseconds to search for.
+     * @return a map from each explored move {start, end} to its number of plays.
+     */
+    public Map<Position[], Integer> rootVisits(Board board, long time) throws CloneNotSupportedException {
+        MonteCarloTreeSearch mcts = new MonteCarloTreeSearch(new NodeTable(), rave ? new NodeTable() : null);
+        mcts.getBestMoveTime(getGame(board), 500, time, Math.sqrt(2));
+        return visits(mcts, board);
+    }
+
+    /**
+     * Reads the number of plays of every legal root move from a search tree.
+     */
+    private Map<Position[], Integer> visits(MonteCarloTreeSearch mcts, Board board) {
+        // in root move order, so a seeded search reports its moves in the same order every run
+        Map<Position[], Integer> visits = new LinkedHashMap<>();
+        for (Map.Entry<Position[], Long> e : mcts.rootMoves(board).entrySet()) {
+            int slot = mcts.nodes.find(e.getValue());
+            if (slot >= 0 && mcts.nodes.plays(slot) > 0) {
+                visits.put(e.getKey(), mcts.nodes.plays(slot));
+            }
+        }
+        return visits;
+    }
+
+    /**
+     * Reads the root statistics of the last search. Must not be called while pondering.
+     */
+    public Map<Position[], Integer> lastVisits() {
+        joinSearch();
+        if (lastSearch == null) {
+            return Collections.emptyMap();
+        }
+        return visits(lastSearch, lastRoot);
+    }
+
+    public double lastEval() {
+        joinSearch();
+        return lastEval;
+    }
+
+    public int lastPlayouts() {
+        joinSearch();
+        return lastPlayouts;
+    }
+
     /**
      * Runs the Monte Carlo Tree Search under the specificed conditions.
+     * 
+     * Nodes are identified by the canonical Zobrist hash of the game state a move
+     * leads to, seen by the player to move next (and so relative to the player who
+     * made the move), so that colour rotated states share statistics. They are kept
+     * in a fixed size {@link NodeTable}.
      */
     private class MonteCarloTreeSearch {
-        public Map<PositionPair, Integer> plays = new HashMap<>();
-        public Map<PositionPair, Integer> wins = new HashMap<>();
+        public final NodeTable nodes;
+        public final NodeTable amaf;
+        private final boolean rave;
+        public long lastMillis;
+        private int[] visitedSlots = new int[0];
+        private Colour[] visitedTurns = new Colour[0];
+        private int[] plyMoves = new int[0];
+        private Colour[] plyTurns = new Colour[0];
+        private long[] treeParents = new long[0];
+        private long[] history = new long[0];
+        private final int[] features = new int[PolicyValueModel.MAX_ACTIVE];
+        /** The pieces of the board simulations last started from, copied into each simulation. */
+        private Board rootBoard;
+        private PieceList rootPieces;
+        private long rootHash;
+        /** Where to publish the best move so far and look for cancellation, or null. */
+        public SearchHandle handle;
+        /** If positive, the number of simulations each search runs, whatever the time. */
+        public int playouts;
+        private final SplittableRandom random;
+        /** Leaves waiting for the value model, one lane per colour each. */
+        private final LeafBatch batch = model == null ? null : PolicyValueModel.batch(3 * LEAF_BATCH);
+        private final List<PendingLeaf> pending = new ArrayList<>();
+
+        /**
+         * @param nodes the statistics of the nodes of the tree.
+         * @param amaf  the all-moves-as-first statistics of each (node, move) pair,
+         *              or null to search without RAVE.
+         */
+        public MonteCarloTreeSearch(NodeTable nodes, NodeTable amaf) {
+            this.nodes = nodes;
+            this.amaf = amaf;
+            this.rave = amaf != null;
+            this.random = splitRandom();
+        }
+
+        /**
+         * Blends the value of a child with its all-moves-as-first value: the moves
+         * made from this node at any later point of a simulation by the same player.
+         * The AMAF value dominates while the child has few plays and fades out as
+         * its own statistics become reliable.
+         * 
+         * @param parent the hash of the node the move is made from.
+         * @param move   the move leading to the child.
+         * @param turn   the player making the move.
+         * @param value  the child's own win rate.
+         * @param plays  the child's own number of plays.
+         * @return the blended value.
+         */
+        private double raveValue(long parent, Position[] move, Colour turn, double value, int plays) {
+            int slot = amaf.find(amafKey(parent, ZobristHash.canonicalMove(move[0], move[1], turn)));
+            if (slot < 0 || amaf.plays(slot) == 0) {
+                return value;
+            }
+            double beta = Math.sqrt(RAVE_EQUIVALENCE / (3.0 * plays + RAVE_EQUIVALENCE));
+            return (1 - beta) * value + beta * amaf.wins(slot) / amaf.plays(slot);
+        }
+
+        /**
+         * Credits every move of the simulation to the matching sibling edge of each
+         * earlier tree node where the same player was to move.
+         * 
+         * @param treeDepth the number of plies played from tree nodes.
+         * @param plies     the number of plies in the simulation.
+         * @param results   the result of the simulation for each colour.
+         */
+        private void updateAmaf(int treeDepth, int plies, float[] results) {
+            for (int t = 0; t < treeDepth; t++) {
+                Colour turn = plyTurns[t];
+                float result = results[turn.ordinal()];
+                int stamp = amaf.nextStamp();
+                for (int j = t; j < plies; j += 3) {
+                    if (plyTurns[j] != turn) {
+                        continue;
+                    }
+                    // a long rollout adds more keys than the room made at the start of the simulation
+                    amaf.ensureRoom();
+                    int slot = amaf.insert(amafKey(treeParents[t], plyMoves[j]));
+                    if (amaf.mark(slot, stamp)) {
+                        amaf.update(slot, 1, result);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Orders moves by a cheap prior: king captures first, then the policy of the
+         * learned model if there is one, or otherwise other captures by the value of
+         * the captured piece, then quiet moves.
+         * 
+         * @param board     a representation of the current board state.
+         * @param possmoves the legal moves from the current state.
+         * @return the moves, most promising first.
+         */
+        private Position[][] rankByPrior(Board board, Set<Position[]> possmoves) {
+            Position[][] ranked = possmoves.toArray(new Position[0][]);
+            float[] prior = new float[ranked.length];
+            Integer[] order = new Integer[ranked.length];
+            for (int k = 0; k < ranked.length; k++) {
+                Piece target = board.getPiece(ranked[k][1]);
+                if (target != null && target.getType() == PieceType.KING) {
+                    prior[k] = Float.MAX_VALUE;
+                } else if (model != null) {
+                    prior[k] = model.logit(board, ranked[k][0], ranked[k][1]);
+                } else {
+                    prior[k] = target == null ? 0 : target.getValue();
+                }
+                order[k] = k;
+            }
+            Arrays.sort(order, (x, y) -> Float.compare(prior[y], prior[x]));
+            Position[][] sorted = new Position[ranked.length][];
+            for (int k = 0; k < ranked.length; k++) {
+                sorted[k] = ranked[order[k]];
+            }
+            return sorted;
+        }
+
+        /**
+         * @param parentPlays the number of times a node has been played.
+         * @return the number of its children, in prior order, that selection may consider.
+         */
+        private int widen(int parentPlays) {
+            return WIDEN_BASE + (int) (WIDEN_COEF * Math.sqrt(parentPlays));
+        }
+
+        /**
+         * Chooses a move for the simulation outside the tree: always a king capture,
+         * usually the capture of the most valuable piece, and otherwise a random move.
+         * Moves are generated in stages, so the whole move list is only built when a
+         * random move is wanted.
+         * 
+         * @param board  a representation of the current board state.
+         * @param pieces the index of the pieces on the board.
+         * @return the chosen move, or null if there is no legal move.
+         */
+        private Position[] rolloutMove(Board board, PieceList pieces) {
+            StagedMoves staged = new StagedMoves(board, pieces);
+            if (!staged.hasNext()) {
+                return null;
+            }
+            Position[] first = staged.next();
+            if (staged.stage() == StagedMoves.KING_CAPTURE
+                    || (staged.stage() == StagedMoves.CAPTURE && random.nextDouble() < CAPTURE_BIAS)) {
+                return first;
+            }
+            List<Position[]> all = staged.rest();
+            all.add(first);
+            return all.get(random.nextInt(all.size()));
+        }
+
+        /**
+         * Scores a simulation cut off before the end of the game by the material of
+         * each colour relative to the average, squashed into (-1, 1).
+         * 
+         * @param pieces the index of the pieces where the simulation stopped.
+         * @param result the result for each colour, indexed by ordinal.
+         */
+        private void staticResult(PieceList pieces, float[] result) {
+            double total = 0;
+            for (Colour a : colours) {
+                result[a.ordinal()] = material(pieces, a);
+                total += result[a.ordinal()];
+            }
+            for (Colour a : colours) {
+                result[a.ordinal()] = (float) Math.tanh((result[a.ordinal()] - total / 3) / MATERIAL_SCALE);
+            }
+        }
+
+        /**
+         * The path of a simulation whose leaf is waiting for the value model. Nodes
+         * are held by key, since the table may move or evict them before the batch
+         * is scored.
+         */
+        private final class PendingLeaf {
+            final long[] keys;
+            final Colour[] turns;
+            final int[] lanes = new int[3];
+            final int treeDepth;
+            final int plies;
+            final long[] parents;
+            final int[] moves;
+            final Colour[] moveTurns;
+
+            PendingLeaf(int visited, int treeDepth, int plies) {
+                keys = new long[visited];
+                turns = Arrays.copyOf(visitedTurns, visited);
+                for (int v = 0; v < visited; v++) {
+                    keys[v] = nodes.keyAt(visitedSlots[v]);
+                }
+                this.treeDepth = treeDepth;
+                this.plies = plies;
+                parents = rave ? Arrays.copyOf(treeParents, treeDepth) : null;
+                moves = rave ? Arrays.copyOf(plyMoves, plies) : null;
+                moveTurns = rave ? Arrays.copyOf(plyTurns, plies) : null;
+            }
+        }
+
+        /**
+         * Scores the leaves waiting for the value model in one batch and backs up
+         * their results. Searches call this before reading the tree statistics.
+         */
+        public void flush() {
+            if (pending.isEmpty()) {
+                return;
+            }
+            model.values(batch);
+            float[] result = new float[3];
+            for (PendingLeaf leaf : pending) {
+                for (Colour a : colours) {
+                    result[a.ordinal()] = batch.value(leaf.lanes[a.ordinal()]);
+                }
+                for (int v = 0; v < leaf.keys.length; v++) {
+                    int slot = nodes.find(leaf.keys[v]);
+                    if (slot >= 0) {
+                        // the play was counted when the leaf was queued
+                        nodes.update(slot, 0, result[leaf.turns[v].ordinal()]);
+                    }
+                }
+                if (rave) {
+                    System.arraycopy(leaf.parents, 0, treeParents, 0, leaf.treeDepth);
+                    System.arraycopy(leaf.moves, 0, plyMoves, 0, leaf.plies);
+                    System.arraycopy(leaf.moveTurns, 0, plyTurns, 0, leaf.plies);
+                    updateAmaf(leaf.treeDepth, leaf.plies, result);
+                }
+            }
+            pending.clear();
+            batch.clear();
+        }
+
+        /**
+         * @param key   the key of the position just reached.
+         * @param from  the first ply of the history to search.
+         * @param until the ply after the last one to search.
+         * @return true if and only if the position occurred earlier in the simulation.
+         */
+        private boolean repeats(long key, int from, int until) {
+            for (int i = until - 1; i >= from; i--) {
+                if (history[i] == key) {
+                    return true;
+                }
+            }
+            return false;
+        }
 
-        public MonteCarloTreeSearch() {
+        private long amafKey(long parent, int move) {
+            return parent ^ (move + 1) * 0x9E3779B97F4A7C15L;
         }
 
         /**
@@ -57,29 +628,198 @@ public class MCTSAgent extends Agent {
         * @return a move based on the simulations and calculations of the MCTS
         */
         public ScoreDirections getBestMoveTime(Board board, int moves, long time, double c) {
+            return getBestMoveTime(board, moves, time, 0, c);
+        }
+
+        /**
+        * Runs the Monte Carlo Tree Search under the specificed conditions, stopping
+        * as soon as the most played root move can no longer be overtaken.
+        * A king capture is returned without searching. If the search is still
+        * undecided when the time runs out, it may continue for up to the extra time.
+        * @param board a representation of the current board state.
+        * @param move the maximum 'depth' of each simulation
+        * @param time the maximum allowed time for the entire process to run for
+        * @param extra the additional time allowed for an undecided search
+        * @param c the Upper Condifence bound of the Tree (exploitation/exploration parameter)
+        *
+        * @return a move based on the simulations and calculations of the MCTS, with
+        * a null move if the player to move has no legal move
+        */
+        public ScoreDirections getBestMoveTime(Board board, int moves, long time, long extra, double c) {
             long startTime = System.nanoTime();
-            Colour myTurn = board.getTurn();
+            lastMillis = 0;
+            Position[] win = KingAttacks.kingCapture(board, board.getTurn());
+            if (win != null) {
+                return new ScoreDirections(1.0, 0, win);
+            }
+            Map<Position[], Long> roots = rootMoves(board);
+            Position[][] rootMove = roots.keySet().toArray(new Position[0][]);
+            long[] rootKey = new long[rootMove.length];
+            for (int i = 0; i < rootMove.length; i++) {
+                rootKey[i] = roots.get(rootMove[i]);
+            }
+            if (rootMove.length == 0) {// no legal move, so there is nothing to search
+                return new ScoreDirections(0.0, 0, null);
+            }
+            if (rootMove.length == 1) {
+                return new ScoreDirections(0.0, 0, rootMove[0]);
+            }
+            if (handle != null) {// a move to fall back on if the search is stopped before its first decision
+                ScoreDirections first = mostPlayed(rootMove, rootKey);
+                handle.publish(first.move, first.eval, 0);
+            }
+            long deadline = startTime + time * 1_000_000L;
+            long hardDeadline = deadline + extra * 1_000_000L;
             int games = 0;
-            double maxwrate = Double.MIN_VALUE;
-            while (((System.nanoTime() - startTime + 500_000L) / 1_000_000L) < time) {
+            while (true) {
+                if (handle != null && handle.isCancelled()) {
+                    break;
+                }
+                if (games > 0 && games % DECISION_INTERVAL == 0) {
+                    flush();
+                }
+                if (handle != null && games > 0 && games % DECISION_INTERVAL == 0) {
+                    ScoreDirections leader = mostPlayed(rootMove, rootKey);
+                    handle.publish(leader.move, leader.eval, games);
+                }
+                if (playouts > 0) {
+                    // a fixed number of simulations, independent of the clock
+                    if (games >= playouts) {
+                        break;
+                    }
+                    runSimulation(board, moves, c);
+                    games++;
+                    continue;
+                }
+                long now = System.nanoTime();
+                if (now + 500_000L >= hardDeadline) {
+                    break;
+                }
+                if (games > 0 && games % DECISION_INTERVAL == 0) {
+                    long remaining = (now < deadline ? deadline : hardDeadline) - now;
+                    int decision = decided(rootKey, (long) ((double) games * remaining / (now - startTime)));
+                    if (decision == DECIDED || (now >= deadline && decision != CRITICAL)) {
+                        break;
+                    }
+                }
                 runSimulation(board, moves, c);
                 games++;
             }
-            ScoreDirections themove = new ScoreDirections(0.0, 0, this.plays.keySet().iterator().next());
-            System.out.println("GAMES = " + games);
-            //System.out.println("AVGMOVES = "+ avgmoves.stream().mapToInt(val -> val).average().orElse(0.0));
-            for (PositionPair move : this.plays.keySet()) {
-                double wrate = (double) this.wins.get(move) / (double) this.plays.get(move);
-                if (isLegalMove(board, move.from, move.to, myTurn)) {
-                    System.out.println("{ " + move.from + " -> " + move.to + " } = " + wrate + " = "+ this.wins.get(move) + " " + this.plays.get(move) + " -> " + move.turn);
-                    if (wrate > maxwrate) {
-                        maxwrate = wrate;
-                        themove = new ScoreDirections(wrate, 0, move);
+            flush();
+            lastMillis = (System.nanoTime() - startTime) / 1_000_000L;
+            if (DEBUG) {
+                System.out.println("GAMES = " + games + " NODES = " + nodes.size() + " MILLIS = " + lastMillis);
+                //System.out.println("AVGMOVES = "+ avgmoves.stream().mapToInt(val -> val).average().orElse(0.0));
+                for (int i = 0; i < rootMove.length; i++) {
+                    int slot = nodes.find(rootKey[i]);
+                    if (slot >= 0 && nodes.plays(slot) > 0) {
+                        System.out.println("{ " + rootMove[i][0] + " -> " + rootMove[i][1] + " } = "
+                                + nodes.wins(slot) / (double) nodes.plays(slot) + " = " + nodes.wins(slot) + " " + nodes.plays(slot));
                     }
                 }
             }
+            ScoreDirections themove = mostPlayed(rootMove, rootKey);
+            themove.score = games;
+            return themove;
+        }
+
+        /**
+        * @param rootMove the legal root moves.
+        * @param rootKey the tree keys of the root moves.
+        * @return the most played root move, with ties broken by win rate, and its
+        * win rate; the first move if none has been played; null if there are none.
+        */
+        private ScoreDirections mostPlayed(Position[][] rootMove, long[] rootKey) {
+            ScoreDirections themove = null;
+            int maxplays = -1;
+            double maxwrate = -Double.MAX_VALUE;
+            for (int i = 0; i < rootMove.length; i++) {
+                Position[] move = rootMove[i];
+                if (themove == null) {
+                    themove = new ScoreDirections(0.0, 0, move);
+                }
+                int slot = nodes.find(rootKey[i]);
+                if (slot < 0 || nodes.plays(slot) == 0) {
+                    continue;
+                }
+                int plays = nodes.plays(slot);
+                double wrate = nodes.wins(slot) / (double) plays;
+                if (plays > maxplays || (plays == maxplays && wrate > maxwrate)) {
+                    maxplays = plays;
+                    maxwrate = wrate;
+                    themove = new ScoreDirections(wrate, 0, move);
+                }
+            }
             return themove;
         }
+
+        /**
+        * Decides whether searching on can still change the most played root move.
+        * @param rootKey the tree keys of the root moves.
+        * @param remaining the estimated number of simulations left in the time.
+        *
+        * @return DECIDED if the leader cannot be caught, either because its lead in
+        * plays is larger than the simulations left or because the lower confidence
+        * bound of its win rate is above the upper bound of every other move;
+        * CRITICAL if the runner up has nearly as many plays; UNDECIDED otherwise.
+        */
+        private int decided(long[] rootKey, long remaining) {
+            int best = -1;
+            int second = -1;
+            int total = 0;
+            int[] plays = new int[rootKey.length];
+            for (int i = 0; i < rootKey.length; i++) {
+                int slot = nodes.find(rootKey[i]);
+                plays[i] = slot < 0 ? 0 : nodes.plays(slot);
+                total += plays[i];
+                if (best < 0 || plays[i] > plays[best]) {
+                    second = best;
+                    best = i;
+                } else if (second < 0 || plays[i] > plays[second]) {
+                    second = i;
+                }
+            }
+            if (best < 0 || second < 0 || plays[best] == 0) {
+                return UNDECIDED;
+            }
+            if (plays[best] - plays[second] > remaining) {
+                return DECIDED;
+            }
+            if (plays[best] >= MIN_CONFIDENT_PLAYS) {
+                double log = Math.log(total);
+                double lower = nodes.wins(nodes.find(rootKey[best])) / (double) plays[best]
+                        - 2 * Math.sqrt(log / (2.0 * plays[best]));
+                boolean separated = true;
+                for (int i = 0; i < rootKey.length && separated; i++) {
+                    if (i != best && plays[i] > 0) {
+                        double upper = nodes.wins(nodes.find(rootKey[i])) / (double) plays[i]
+                                + 2 * Math.sqrt(log / (2.0 * plays[i]));
+                        separated = lower > upper;
+                    }
+                }
+                if (separated) {
+                    return DECIDED;
+                }
+            }
+            return plays[second] >= CRITICAL_RATIO * plays[best] ? CRITICAL : UNDECIDED;
+        }
+
+        /**
+        * Builds the tree key of every legal move from the given position, so that root
+        * statistics are read for this position only, even when the tree is reused
+        * across moves.
+        * @param board a representation of the current board state.
+        *
+        * @return a map from each legal move {start, end} to its tree key.
+        */
+        public Map<Position[], Long> rootMoves(Board board) {
+            Map<Position[], Long> keys = new LinkedHashMap<>();
+            Map<Position[], Board> possmoves = makeLegalMoves(board, board.getTurn());
+            for (Map.Entry<Position[], Board> e : possmoves.entrySet()) {
+                keys.put(e.getKey(), ZobristHash.canonical(e.getValue()));
+            }
+            return keys;
+        }
         
         /**
         * Runs a simulation of one game under the specificed conditions and updates the tree.
@@ -90,150 +830,220 @@ public class MCTSAgent extends Agent {
         */
         public void runSimulation(Board board, int MaxMoves, double c) {
             try {
-                double maxeval = Double.MIN_VALUE;
-                Set<PositionPair> visited_states = new HashSet<>();
+                nodes.ensureRoom();
+                if (visitedSlots.length < MaxMoves) {
+                    visitedSlots = new int[MaxMoves];
+                    visitedTurns = new Colour[MaxMoves];
+                    plyMoves = new int[MaxMoves];
+                    plyTurns = new Colour[MaxMoves];
+                    treeParents = new long[MaxMoves];
+                    history = new long[MaxMoves + 1];
+                }
+                if (rave) {
+                    amaf.ensureRoom();
+                }
+                int visited = 0;
+                int stamp = nodes.nextStamp();
                 Board cpyGame = getGame(board);
+                if (board != rootBoard) {
+                    rootBoard = board;
+                    rootPieces = PieceList.of(board);
+                    rootHash = ZobristHash.canonical(board);
+                }
+                // keys of the positions since the last capture or pawn move, which cannot be undone
+                history[0] = rootHash;
+                int reversible = 0;
+                int played = 1;
+                PieceList pieces = rootPieces.copy();
                 Colour curTurn = board.getTurn();
-                Colour winner = curTurn;
-                Colour loser = curTurn;
-                int maxscore = Integer.MIN_VALUE;
-                int minscore = Integer.MAX_VALUE;
+                Colour winner = null;
+                Colour loser = null;
                 boolean Expand = true;
+                int rollout = 0;
                 boolean playsinmove = true;
+                int treeDepth = 0;
+                int plies = 0;
+                int lastSlot = -1;
+                int endgame = EndgameTable.UNKNOWN;
                 Position[] move;
                 for (int i = 0; i < MaxMoves; i++) {
-                    Colour x = Colour.values()[(curTurn.ordinal()+1)%3];
-                    Colour y = Colour.values()[(x.ordinal()+1)%3];
-                    Map<Position[], Board> possmoves = makeLegalMoves(cpyGame, curTurn);
-                    for (Position[] a : possmoves.keySet()) {
-                        Set<Position> one = possmoves.get(a).getPositions(x);
-                        one.addAll(possmoves.get(a).getPositions(y));
-                        if (!(plays.keySet().contains(new PositionPair(a[0], a[1], curTurn, possmoves.get(a).getPositions(curTurn), one)))) {
-                            playsinmove = false;
-                        }
+                    if (model != null && !Expand) {
+                        // the model values the new leaf in place of a rollout
+                        break;
                     }
+                    // only the tree needs every child; rollouts take moves from a staged generator
+                    Map<Position[], Board> possmoves = playsinmove ? makeLegalMoves(cpyGame, pieces, curTurn) : null;
+                    long parent = rave && treeDepth == i && Expand ? ZobristHash.canonical(cpyGame) : 0L;
+                    move = null;
                     if (playsinmove) {
-                        double eval = 0.0;
-                        double log_total = 0.0;
-                        for (Position[] a : possmoves.keySet()) {
-                            Set<Position> one = possmoves.get(a).getPositions(x);
-                            one.addAll(possmoves.get(a).getPositions(y));
-                            log_total += this.plays.get(new PositionPair(a[0], a[1], curTurn, possmoves.get(a).getPositions(curTurn), one));
+                        Position[][] ranked = rankByPrior(cpyGame, possmoves.keySet());
+                        int[] children = new int[ranked.length];
+                        int parentPlays = 0;
+                        int allowed = ranked.length;
+                        if (lastSlot >= 0) {
+                            parentPlays = nodes.plays(lastSlot);
+                            allowed = Math.min(ranked.length, widen(parentPlays));
                         }
-                        log_total = Math.log(log_total);
-                        for (Position[] b : possmoves.keySet()) {
-                            Set<Position> one = possmoves.get(b).getPositions(x);
-                            one.addAll(possmoves.get(b).getPositions(y));
-                            PositionPair cur_move = new PositionPair(b[0], b[1], curTurn, possmoves.get(b).getPositions(curTurn), one);
-                            eval = (this.wins.get(cur_move) / (double) this.plays.get(cur_move))
-                                    + c * (Math.sqrt(log_total / this.plays.get(cur_move)));
-                            if (eval > maxeval) {
-                                maxeval = eval;
-                                move = new Position[] { b[0], b[1] };
+                        for (int k = 0; k < allowed; k++) {
+                            children[k] = nodes.find(ZobristHash.canonical(possmoves.get(ranked[k])));
+                            if (lastSlot < 0 && children[k] >= 0) {
+                                parentPlays += nodes.plays(children[k]);
                             }
                         }
+                        if (lastSlot < 0) {
+                            allowed = Math.min(ranked.length, widen(parentPlays));
+                        }
+                        for (int k = 0; k < allowed && playsinmove; k++) {
+                            if (children[k] < 0) {
+                                // expand the most promising child not yet in the tree
+                                playsinmove = false;
+                                move = ranked[k];
+                            }
+                        }
+                        if (playsinmove) {
+                            double maxeval = -Double.MAX_VALUE;
+                            double eval = 0.0;
+                            double log_total = 0.0;
+                            for (int k = 0; k < allowed; k++) {
+                                log_total += nodes.plays(children[k]);
+                            }
+                            log_total = Math.log(log_total);
+                            for (int k = 0; k < allowed; k++) {
+                                int slot = children[k];
+                                double value = nodes.wins(slot) / (double) nodes.plays(slot);
+                                if (rave) {
+                                    value = raveValue(parent, ranked[k], curTurn, value, nodes.plays(slot));
+                                }
+                                eval = value + c * (Math.sqrt(log_total / nodes.plays(slot)));
+                                if (eval > maxeval) {
+                                    maxeval = eval;
+                                    move = ranked[k];
+                                }
+                            }
+                        }
+                    }
+                    if (move == null) {
+                        if (!Expand && ++rollout > ROLLOUT_HORIZON) {
+                            break;
+                        }
+                        move = rolloutMove(cpyGame, pieces);
+                        if (move == null) {
+                            break;
+                        }
+                    }
+                    if (rave) {
+                        if (treeDepth == i && Expand) {
+                            treeParents[treeDepth++] = parent;
+                        }
+                        plyMoves[plies] = ZobristHash.canonicalMove(move[0], move[1], curTurn);
+                        plyTurns[plies++] = curTurn;
+                    }
+                    boolean captured = pieces.colourAt(move[1]) != null;
+                    if (captured || pieces.typeAt(move[0]) == PieceType.PAWN) {
+                        reversible = played;
                     }
-                    move = (Position[]) possmoves.keySet().toArray()[random.nextInt(possmoves.size())];
                     cpyGame.move(move[0], move[1]);
-                    Set<Position> one = cpyGame.getPositions(x);
-                    one.addAll(cpyGame.getPositions(y));
-                    PositionPair toGo = new PositionPair(move[0], move[1], curTurn, cpyGame.getPositions(curTurn), one);
-                    if (Expand && !this.plays.containsKey(toGo)) {
+                    pieces.move(cpyGame, move[0], move[1]);
+                    long toGo = ZobristHash.canonical(cpyGame);
+                    int slot = nodes.find(toGo);
+                    if (Expand && slot < 0) {
                         Expand = false;
-                        this.plays.put(toGo, 0);
-                        this.wins.put(toGo, 0);
+                        slot = nodes.insert(toGo);
                     }
 
-                    if (this.plays.containsKey(toGo)) {
-                        visited_states.add(toGo);
+                    if (slot >= 0 && nodes.mark(slot, stamp)) {
+                        visitedSlots[visited] = slot;
+                        visitedTurns[visited++] = curTurn;
                     }
+                    lastSlot = slot;
                     curTurn = cpyGame.getTurn();
                     if (cpyGame.gameOver()) {
                         winner = cpyGame.getWinner();
                         loser = cpyGame.getLoser();
                         break;
                     }
+                    if (captured && (endgame = EndgameTable.distance(pieces, curTurn)) != EndgameTable.UNKNOWN) {
+                        // a solved endgame: its outcome is known without playing on
+                        break;
+                    }
+                    if (repeats(toGo, Math.max(reversible, played - REPETITION_WINDOW), played)) {
+                        // the pieces are being shuffled: score the line now rather than play out the cycle
+                        break;
+                    }
+                    history[played++] = toGo;
                 }
-                if (!cpyGame.gameOver()) {
+                float[] result = new float[3];
+                if (cpyGame.gameOver()) {
                     for (Colour a : colours) {
-                        if (cpyGame.score(a) > maxscore) {
-                            winner = a;
-                        }
-                        if(cpyGame.score(a) < minscore){
-                            loser = a;
-                        }
+                        result[a.ordinal()] = (winner == a ? 1f : 0f) - (loser == a ? 1f : 0f);
                     }
-                }
-                for (PositionPair moves : visited_states) {
-                    if (this.plays.get(moves) != null) {
-                        this.plays.put(moves, this.plays.get(moves) + 1);
+                } else if (endgame != EndgameTable.UNKNOWN) {
+                    EndgameTable.result(pieces, endgame, result);
+                } else if (model != null) {
+                    // queue the leaf with a play but no result, which also steers the
+                    // next simulations away from it until the batch is scored
+                    PendingLeaf leaf = new PendingLeaf(visited, treeDepth, plies);
+                    for (Colour a : colours) {
+                        leaf.lanes[a.ordinal()] = batch.add(features, PolicyValueModel.features(cpyGame, a, features));
                     }
-                    if (winner == moves.turn && this.wins.get(moves) != null) {
-                        this.wins.put(moves, this.wins.get(moves) + 1);
+                    for (int v = 0; v < visited; v++) {
+                        nodes.update(visitedSlots[v], 1, 0f);
                     }
-                    if(loser == moves.turn && this.wins.get(moves) != null){
-                        this.wins.put(moves, this.wins.get(moves) - 1);
+                    pending.add(leaf);
+                    if (pending.size() == LEAF_BATCH) {
+                        flush();
                     }
+                    return;
+                } else {
+                    staticResult(pieces, result);
+                }
+                for (int v = 0; v < visited; v++) {
+                    nodes.update(visitedSlots[v], 1, result[visitedTurns[v].ordinal()]);
+                }
+                if (rave) {
+                    updateAmaf(treeDepth, plies, result);
                 }
             } catch (CloneNotSupportedException | ImpossiblePositionException e) {
             }
         }
     }
 
+    /**
+     * @param board  The representation of the game state.
+     * @param colour the colour whose pieces are counted.
+     * @return the total value of that colour's pieces on the board.
+     */
+    public int material(Board board, Colour colour) {
+        return material(PieceList.of(board), colour);
+    }
+
+    /**
+     * @param pieces The index of the pieces on the board.
+     * @param colour the colour whose pieces are counted.
+     * @return the total value of that colour's pieces.
+     */
+    public int material(PieceList pieces, Colour colour) {
+        int total = 0;
+        for (PieceType type : PieceType.values()) {
+            total += pieces.count(colour, type) * type.getValue();
+        }
+        return total;
+    }
+
     /**
      * A private class used for the Priority queue
      */
     private class ScoreDirections {
         public double eval;
         public Integer score;
-        public PositionPair PP;
+        public Position[] move;
 
-        private ScoreDirections(Double eval, Integer score, PositionPair pp) {
+        private ScoreDirections(Double eval, Integer score, Position[] move) {
             this.eval = eval;
-            this.PP = pp;
+            this.move = move;
             this.score = score;
         }
     }
-    
-    /**
-     * A private class used for the MCTS Tree Search & Update
-     */
-    public final class PositionPair {
-        public final Position from;
-        public final Position to;
-        public final Colour turn;
-        public final Set<Position> gamestate;
-        public final Set<Position> opponents;
-
-        public PositionPair(Position from, Position to, Colour turn, Set<Position> gamestate, Set<Position> opponents) {
-            this.from = from;
-            this.to = to;
-            this.turn = turn;
-            this.gamestate = gamestate;
-            this.opponents = opponents;
-        }
-
-        @Override
-        public boolean equals(Object o) {
-            if (o == this) {
-                return true;
-            }
-            if (!(o instanceof PositionPair)) {
-                return false;
-            }
-            if (o == null || o.getClass() != this.getClass()) {
-                return false;
-            }
-            PositionPair other = (PositionPair) o;
-            return other.turn == this.turn && this.gamestate.equals(other.gamestate)
-                    && other.gamestate.equals(this.gamestate) && other.opponents.equals(this.opponents);
-        }
-
-        @Override
-        public int hashCode() {
-            return 71 * gamestate.hashCode() + turn.hashCode() + opponents.hashCode();
-        }
-    }
 
     /**
      * Generates a set of Position arrays which are all legal moves in the current
@@ -244,12 +1054,21 @@ public class MCTSAgent extends Agent {
      *         the current game state.
      */
     public Map<Position[], Board> makeLegalMoves(Board board, Colour turn) {
-        Map<Position[], Board> legalMoves = new HashMap<>();
+        return makeLegalMoves(board, PieceList.of(board), turn);
+    }
+
+    /**
+     * As {@link #makeLegalMoves(Board, Colour)}, reading piece locations from an
+     * index kept with the board.
+     * 
+     * @param pieces The index of the pieces on the board.
+     */
+    public Map<Position[], Board> makeLegalMoves(Board board, PieceList pieces, Colour turn) {
+        Map<Position[], Board> legalMoves = new LinkedHashMap<>();
         try {
             Board cpyGame = getGame(board);
-            Position[] pieces = board.getPositions(turn).toArray(new Position[0]);
-            for (Position square : pieces) {
-                Position end = pieces[0];
+            for (Position square : pieces.positions(turn)) {
+                Position end;
                 Piece mover = board.getPiece(square);
                 Direction[][] steps = mover.getType().getSteps();
                 int reps = mover.getType().getStepReps();
@@ -290,6 +1109,39 @@ public class MCTSAgent extends Agent {
      * @param finalBoard the end position of the board
      * **/
     public void finalBoard(Board finalBoard){
+        joinSearch();
+        stopPondering();
+        banked = 0;
+        if (nodes != null) {
+            if (warmStart != null) {
+                warmStart.save(nodes);
+            }
+            nodes.clear();
+            if (warmStart != null) {
+                warmStart.load(nodes);
+            }
+        }
+        if (amaf != null) {
+            amaf.clear();
+        }
+        lastSearch = null;
+        lastRoot = null;
+        shutdown();
+    }
+
+    /**
+     * Stops the agent's threads, which are made again if it plays another game, so
+     * that a host making many agents does not keep a thread per finished game.
+     */
+    private void shutdown() {
+        if (searchThread != null) {
+            searchThread.shutdown();
+            searchThread = null;
+        }
+        if (ponderThread != null) {
+            ponderThread.shutdown();
+            ponderThread = null;
+        }
     }
 
     /**
@@ -0,0 +1,354 @@
+package threeChess.agents;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import threeChess.*;
+
+/**
+ * Runs many three player games at once in one JVM, for load testing and
+ * tournaments, and finds how many concurrent games a machine sustains within a
+ * latency objective.
+ *
+ * Each game is a session on its own virtual thread (or, before Java 21, a platform
+ * thread), which only waits: every call to an agent is a task on a bounded pool of
+ * carrier threads, taken in the order asked, so CPU bound agents share the cores
+ * fairly whatever the number of games. A move must arrive within the move time of
+ * the moment its task starts, plus a little grace, or it counts as a timeout and
+ * the agent forfeits. Agents that implement {@link AnytimeSearch} run their search
+ * itself as the carrier task, rather than on threads of their own, and are asked
+ * for their best move so far at the same deadline instead, timing out only if they
+ * have none. The latency of a move is measured from when it was asked for, so it
+ * includes the time waiting for a carrier. A level of load is met only if no move
+ * timed out and no game was forfeited.
+ *
+ * Every game has its own agents, made through their no argument constructors. The
+ * precomputed tables behind them ({@link Rays}, {@link BitBoard}, {@link ZobristHash},
+ * the evaluation weights, model, opening book and endgame tables) are immutable once
+ * built and shared by every agent in the JVM. When the threeChess.record system
+ * property names a file, each game is appended to it once as a {@link GameRecord}.
+ *
+ * Usage: MatchHost [games] [carriers] [move millis] [max plies] [blue agent] [green agent] [red agent]
+ *    or: MatchHost ramp [max games] [slo millis] [carriers] [move millis] [max plies] [agents...]
+ */
+public class MatchHost {
+
+    /** Time allowed past the move time for the move to be handed back. */
+    private static final long GRACE_MILLIS = 50;
+    /** The percentile of move latency held to the objective when ramping. */
+    private static final double SLO_PERCENTILE = 99.0;
+
+    private final String[] seats;
+    private final int carriers;
+    private final long moveMillis;
+    private final int maxPlies;
+
+    /**
+     * @param seats      the class names of the agents playing blue, green and red.
+     * @param carriers   the number of agent calls run at once.
+     * @param moveMillis the time allowed for each move.
+     * @param maxPlies   the number of plies after which a game is stopped.
+     */
+    public MatchHost(String[] seats, int carriers, long moveMillis, int maxPlies) {
+        this.seats = seats;
+        this.carriers = carriers;
+        this.moveMillis = moveMillis;
+        this.maxPlies = maxPlies;
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean ramp = args.length > 0 && args[0].equals("ramp");
+        int offset = ramp ? 1 : 0;
+        int games = args.length > offset ? Integer.parseInt(args[offset]) : 100;
+        long slo = ramp && args.length > 2 ? Long.parseLong(args[2]) : 0;
+        if (ramp) {
+            offset++;
+        }
+        int carriers = args.length > offset + 1 ? Integer.parseInt(args[offset + 1])
+                : Runtime.getRuntime().availableProcessors();
+        long move = args.length > offset + 2 ? Long.parseLong(args[offset + 2]) : 100;
+        int plies = args.length > offset + 3 ? Integer.parseInt(args[offset + 3]) : 300;
+        String[] seats = { "AggressiveAgent", "AggressiveAgent", "AggressiveAgent" };
+        for (int i = 0; i < 3 && i + offset + 4 < args.length; i++) {
+            seats[i] = args[i + offset + 4];
+        }
+        MatchHost host = new MatchHost(seats, carriers, move, plies);
+        if (ramp) {
+            int sustained = host.ramp(games, slo);
+            System.out.println("Sustains " + sustained + " concurrent games at p" + SLO_PERCENTILE + " <= " + slo
+                    + "ms");
+        } else {
+            System.out.println(host.play(games));
+        }
+    }
+
+    /**
+     * Plays games at doubling concurrency until the latency objective is missed,
+     * then bisects between the last two levels.
+     *
+     * @param maxGames the most concurrent games to try.
+     * @param sloMillis the latency the 99th percentile of moves must stay within.
+     * @return the most concurrent games that met the objective without a timeout,
+     *         or 0 if even one game did not.
+     */
+    public int ramp(int maxGames, long sloMillis) throws InterruptedException {
+        int good = 0;
+        int bad = 0;
+        for (int games = 1; games <= maxGames; games *= 2) {
+            Load load = play(games);
+            System.out.println(load);
+            if (!load.meets(sloMillis)) {
+                bad = games;
+                break;
+            }
+            good = games;
+        }
+        if (bad == 0 && good < maxGames) {
+            Load load = play(maxGames);
+            System.out.println(load);
+            if (load.meets(sloMillis)) {
+                return maxGames;
+            }
+            bad = maxGames;
+        }
+        // a few bisection steps are enough to place the knee within an eighth
+        while (bad - good > Math.max(1, good / 8)) {
+            int games = (good + bad) >>> 1;
+            Load load = play(games);
+            System.out.println(load);
+            if (load.meets(sloMillis)) {
+                good = games;
+            } else {
+                bad = games;
+            }
+        }
+        return good;
+    }
+
+    /**
+     * Plays the given number of games at once and measures them.
+     *
+     * @param games the number of concurrent games.
+     * @return the latency and throughput of the games.
+     */
+    public Load play(int games) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(carriers, daemon("match-carrier-"));
+        ExecutorService sessions = sessions();
+        Load load = new Load(games);
+        long startTime = System.nanoTime();
+        try {
+            List<Future<?>> running = new ArrayList<>();
+            for (int g = 0; g < games; g++) {
+                running.add(sessions.submit(() -> {
+                    playGame(pool, load);
+                    return null;
+                }));
+            }
+            for (Future<?> game : running) {
+                try {
+                    game.get();
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace();
+                }
+            }
+        } finally {
+            sessions.shutdownNow();
+            pool.shutdownNow();
+        }
+        load.millis = (System.nanoTime() - startTime) / 1_000_000L;
+        return load;
+    }
+
+    /**
+     * Plays one game, asking the carriers for each move.
+     */
+    private void playGame(ExecutorService pool, Load load) throws Exception {
+        Agent[] agents = new Agent[3];
+        for (int i = 0; i < 3; i++) {
+            String name = seats[i].contains(".") ? seats[i] : "threeChess.agents." + seats[i];
+            agents[i] = (Agent) Class.forName(name).getDeclaredConstructor().newInstance();
+        }
+        Board board = new Board(0);
+        GameRecord.Log log = new GameRecord.Log();
+        Colour forfeit = null;
+        while (!board.gameOver() && board.getMoveCount() < maxPlies) {
+            Colour turn = board.getTurn();
+            long asked = System.nanoTime();
+            Position[] move = ask(pool, agents[turn.ordinal()], (Board) board.clone(), load);
+            long millis = (System.nanoTime() - asked) / 1_000_000L;
+            load.latencies.record(millis);
+            if (move == null || !board.isLegalMove(move[0], move[1])) {
+                load.forfeits.incrementAndGet();
+                forfeit = turn;
+                break;
+            }
+            log.record(board.getMoveCount(), millis, agents[turn.ordinal()]);
+            board.move(move[0], move[1]);
+        }
+        for (Agent agent : agents) {
+            agent.finalBoard(board);
+        }
+        GameRecordWriter records = GameRecordWriter.shared();
+        if (records != null) {
+            records.write(forfeit == null ? GameRecord.fromBoard(board, log)
+                    : GameRecord.fromBoard(board, log, null, forfeit));
+        }
+        load.plies.addAndGet(board.getMoveCount());
+    }
+
+    /**
+     * Runs one call to an agent on a carrier and waits for it, from the moment it
+     * starts, for no longer than the move time plus the grace. An agent that
+     * implements {@link AnytimeSearch} runs its search as the carrier task and is
+     * asked for its best move so far at the deadline, which counts as a timeout if it
+     * has none; any other agent's playMove is the task.
+     *
+     * @return the move, or null if the agent failed or ran out of time.
+     */
+    private Position[] ask(ExecutorService pool, Agent agent, Board board, Load load) throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        long[] startTime = new long[1];
+        if (agent instanceof AnytimeSearch) {
+            boolean[] submitted = new boolean[1];
+            SearchHandle handle = ((AnytimeSearch) agent).search(board, task -> {
+                submitted[0] = true;
+                pool.execute(() -> {
+                    startTime[0] = System.nanoTime();
+                    started.countDown();
+                    task.run();
+                });
+            });
+            if (submitted[0]) {
+                started.await();
+            } else {
+                startTime[0] = System.nanoTime();
+            }
+            Position[] move = handle.await(deadline(startTime[0]));
+            if (move == null) {// nothing was published by the deadline
+                load.timeouts.incrementAndGet();
+            }
+            return move;
+        }
+        Future<Position[]> move = pool.submit(() -> {
+            startTime[0] = System.nanoTime();
+            started.countDown();
+            return agent.playMove(board);
+        });
+        started.await();
+        try {
+            return move.get(deadline(startTime[0]), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            move.cancel(true);
+            load.timeouts.incrementAndGet();
+        } catch (ExecutionException e) {
+        }
+        return null;
+    }
+
+    /**
+     * @return the milliseconds left, from now, of the move time and grace of a
+     *         task started at the given time.
+     */
+    private long deadline(long startTime) {
+        return Math.max(0, moveMillis + GRACE_MILLIS - (System.nanoTime() - startTime) / 1_000_000L);
+    }
+
+    /**
+     * @return an executor with one virtual thread per task where the JVM has them,
+     *         otherwise one growing pool of daemon threads.
+     */
+    private static ExecutorService sessions() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(daemon("match-session-"));
+        }
+    }
+
+    private static ThreadFactory daemon(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * The measurements of a number of games played at once.
+     */
+    public static final class Load {
+        public final int games;
+        public final Latencies latencies = new Latencies();
+        public final AtomicInteger plies = new AtomicInteger();
+        public final AtomicInteger timeouts = new AtomicInteger();
+        public final AtomicInteger forfeits = new AtomicInteger();
+        public long millis;
+
+        Load(int games) {
+            this.games = games;
+        }
+
+        /**
+         * @return true if and only if no move timed out, no game was forfeited and the
+         *         99th percentile of move latency is within the objective.
+         */
+        public boolean meets(long sloMillis) {
+            return timeouts.get() == 0 && forfeits.get() == 0 && latencies.percentile(SLO_PERCENTILE) <= sloMillis;
+        }
+
+        @Override
+        public String toString() {
+            long moves = latencies.count();
+            return String.format("games=%d moves=%d timeouts=%d forfeits=%d p50=%dms p95=%dms p99=%dms max=%dms"
+                    + " moves/s=%.1f", games, moves, timeouts.get(), forfeits.get(), latencies.percentile(50),
+                    latencies.percentile(95), latencies.percentile(99), latencies.percentile(100),
+                    millis == 0 ? 0.0 : moves * 1000.0 / millis);
+        }
+    }
+
+    /**
+     * A lock free histogram of move latencies at millisecond resolution, up to a minute.
+     */
+    public static final class Latencies {
+        private static final int MAX_MILLIS = 60_000;
+        private final AtomicLongArray counts = new AtomicLongArray(MAX_MILLIS + 1);
+
+        /**
+         * Adds one latency, counting anything over a minute as a minute.
+         */
+        public void record(long millis) {
+            counts.incrementAndGet((int) Math.max(0, Math.min(MAX_MILLIS, millis)));
+        }
+
+        /**
+         * @return the number of latencies recorded.
+         */
+        public long count() {
+            long n = 0;
+            for (int i = 0; i <= MAX_MILLIS; i++) {
+                n += counts.get(i);
+            }
+            return n;
+        }
+
+        /**
+         * @param p a percentile between 0 and 100.
+         * @return the smallest latency at or above that share of the recorded ones,
+         *         or 0 if none were recorded.
+         */
+        public long percentile(double p) {
+            long total = count();
+            long rank = (long) Math.ceil(p / 100.0 * total);
+            long seen = 0;
+            for (int i = 0; i <= MAX_MILLIS; i++) {
+                seen += counts.get(i);
+                if (seen >= Math.max(1, rank)) {
+                    return i;
+                }
+            }
+            return 0;
+        }
+    }
+}
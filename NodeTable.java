@@ -0,0 +1,318 @@
+package threeChess.agents;
+
+import java.util.Arrays;
+
+/**
+ * A fixed size table of MCTS node statistics keyed by the Zobrist hash of the
+ * game state a move leads to.
+ * 
+ * Nodes live in preallocated primitive arrays addressed by open addressing with
+ * linear probing, so a node costs 20 bytes (key, plays, wins, stamp) and the memory
+ * used by a search is fixed when the table is created. Once the node budget is
+ * reached, the least visited half of the nodes is evicted in place, ranked by
+ * their exact play counts.
+ */
+public final class NodeTable {
+
+    private static final int DEFAULT_NODES = Integer.getInteger("threeChess.mctsNodes", 1 << 19);
+    private static final long EMPTY = 0L;
+    /** The smallest node budget accepted. */
+    public static final int MIN_NODES = 16;
+
+    private final long[] keys;
+    private final int[] plays;
+    private final float[] wins;
+    private final int[] stamps;
+    private final int mask;
+    private final int shift;
+    private final int budget;
+    /** Scratch space for the play counts ranked by an eviction, allocated on first use. */
+    private int[] ranks;
+    private int size;
+    private int stamp;
+
+    /**
+     * Creates a table with the node budget given by the threeChess.mctsNodes system
+     * property, 2^19 nodes by default.
+     */
+    public NodeTable() {
+        this(DEFAULT_NODES);
+    }
+
+    /**
+     * @param budget the maximum number of nodes kept, at least MIN_NODES.
+     * @throws IllegalArgumentException if the budget is smaller than MIN_NODES.
+     */
+    public NodeTable(int budget) {
+        if (budget < MIN_NODES) {
+            throw new IllegalArgumentException("A node table needs a budget of at least " + MIN_NODES + " nodes: "
+                    + budget);
+        }
+        int capacity = Integer.highestOneBit(Math.max(16, budget + budget / 3) - 1) << 1;
+        this.keys = new long[capacity];
+        this.plays = new int[capacity];
+        this.wins = new float[capacity];
+        this.stamps = new int[capacity];
+        this.mask = capacity - 1;
+        this.shift = Integer.numberOfLeadingZeros(capacity) + 1;
+        this.budget = budget;
+    }
+
+    /**
+     * @param key the hash of a game state.
+     * @return the slot of the node, or -1 if it is not in the table.
+     */
+    public int find(long key) {
+        key = nonEmpty(key);
+        for (int i = home(key);; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return i;
+            }
+            if (keys[i] == EMPTY) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Adds a node with no plays, or finds the existing one.
+     * Call {@link #ensureRoom} before each insert that may add a node, so the table
+     * never fills up; the last empty slot is never taken, so probes always end.
+     * 
+     * @param key the hash of a game state.
+     * @return the slot of the node.
+     * @throws IllegalStateException if the table has no room for another node.
+     */
+    public int insert(long key) {
+        key = nonEmpty(key);
+        int i = home(key);
+        while (keys[i] != EMPTY) {
+            if (keys[i] == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        if (size + 1 >= keys.length) {
+            throw new IllegalStateException("The node table is full: call ensureRoom before inserting");
+        }
+        keys[i] = key;
+        plays[i] = 0;
+        wins[i] = 0f;
+        stamps[i] = 0;
+        size++;
+        return i;
+    }
+
+    public int plays(int slot) {
+        return plays[slot];
+    }
+
+    public float wins(int slot) {
+        return wins[slot];
+    }
+
+    /**
+     * @param slot  the slot of a node.
+     * @param plays the number of plays to add.
+     * @param wins  the wins to add, negative for losses.
+     */
+    public void update(int slot, int plays, float wins) {
+        this.plays[slot] += plays;
+        this.wins[slot] += wins;
+    }
+
+    /**
+     * @return a new stamp, used to mark the nodes visited by one simulation.
+     */
+    public int nextStamp() {
+        if (++stamp == Integer.MAX_VALUE) {
+            Arrays.fill(stamps, 0);
+            stamp = 1;
+        }
+        return stamp;
+    }
+
+    /**
+     * Marks a node as visited with the given stamp.
+     * 
+     * @return true if the node had not been marked with this stamp before.
+     */
+    public boolean mark(int slot, int stamp) {
+        if (stamps[slot] == stamp) {
+            return false;
+        }
+        stamps[slot] = stamp;
+        return true;
+    }
+
+    /**
+     * @return the number of nodes in the table.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the maximum number of nodes kept.
+     */
+    public int budget() {
+        return budget;
+    }
+
+    /**
+     * @return the number of slots, occupied or not.
+     */
+    public int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * @return the key stored in a slot, or 0 if the slot is empty.
+     */
+    public long keyAt(int slot) {
+        return keys[slot];
+    }
+
+    /**
+     * Evicts the least visited nodes if the budget has been reached. Slots are only
+     * moved here, so slots found since the last call stay valid until the next one.
+     */
+    public void ensureRoom() {
+        if (size < budget) {
+            return;
+        }
+        evict(budget / 2);
+    }
+
+    /**
+     * Removes the given number of least played nodes, or every node if there are
+     * fewer. Nodes with as many plays as the last one removed are kept in slot order.
+     */
+    public void evict(int count) {
+        if (count >= size) {
+            clear();
+            return;
+        }
+        if (count <= 0) {
+            return;
+        }
+        if (ranks == null) {
+            ranks = new int[keys.length];
+        }
+        int n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                ranks[n++] = plays[i];
+            }
+        }
+        // every node below the count-th smallest play count goes, then enough ties
+        int threshold = select(ranks, n, count - 1);
+        int ties = count;
+        for (int i = 0; i < n; i++) {
+            if (ranks[i] < threshold) {
+                ties--;
+            }
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY && (plays[i] < threshold || plays[i] == threshold && ties-- > 0)) {
+                keys[i] = EMPTY;
+                size--;
+            }
+        }
+        rehash();
+    }
+
+    /**
+     * Finds the k-th smallest of the first n values by quickselect, reordering them.
+     *
+     * @return the value that would be at index k if the first n were sorted.
+     */
+    private static int select(int[] values, int n, int k) {
+        int lo = 0;
+        int hi = n - 1;
+        while (lo < hi) {
+            int pivot = values[(lo + hi) >>> 1];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (values[i] < pivot) {
+                    i++;
+                }
+                while (values[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int t = values[i];
+                    values[i++] = values[j];
+                    values[j--] = t;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                break;
+            }
+        }
+        return values[k];
+    }
+
+    /**
+     * Removes every node with fewer plays than the threshold.
+     */
+    public void evictBelow(int threshold) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY && plays[i] < threshold) {
+                keys[i] = EMPTY;
+                size--;
+            }
+        }
+        rehash();
+    }
+
+    /**
+     * Removes every node.
+     */
+    public void clear() {
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+    }
+
+    /**
+     * Closes the gaps left by evictions: walking from an empty slot, each node is
+     * taken out and put back at the first free slot of its probe sequence.
+     */
+    private void rehash() {
+        int start = 0;
+        while (keys[start] != EMPTY) {
+            start++;
+        }
+        for (int n = 1; n <= keys.length; n++) {
+            int i = (start + n) & mask;
+            long key = keys[i];
+            if (key == EMPTY) {
+                continue;
+            }
+            keys[i] = EMPTY;
+            int j = home(key);
+            while (keys[j] != EMPTY) {
+                j = (j + 1) & mask;
+            }
+            if (j != i) {
+                plays[j] = plays[i];
+                wins[j] = wins[i];
+                stamps[j] = stamps[i];
+            }
+            keys[j] = key;
+        }
+    }
+
+    private int home(long key) {
+        return ((int) (key ^ (key >>> 32)) * 0x9E3779B9) >>> shift;
+    }
+
+    private static long nonEmpty(long key) {
+        return key == EMPTY ? 1L : key;
+    }
+}
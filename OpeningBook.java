@@ -0,0 +1,198 @@
+package threeChess.agents;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import threeChess.*;
+
+/**
+ * A read only opening book stored in a compact binary file.
+ * 
+ * The file starts with a header (magic, version, entry count) followed by fixed
+ * size entries {long key, int move, int weight} sorted by key, where the key is the
+ * canonical {@link ZobristHash} of the position and the move is a {@link PackedMove}
+ * in the same rotated frame, so one entry serves all three colours.
+ * A position may have several entries, one per book move.
+ * 
+ * The file is memory mapped, and each path is mapped only once per JVM so that
+ * every agent shares the same copy.
+ */
+public final class OpeningBook {
+
+    public static final int MAGIC = 0x33434B42;
+    public static final int VERSION = 2;
+    public static final int HEADER_BYTES = 12;
+    public static final int ENTRY_BYTES = 16;
+
+    private static final String DEFAULT_PATH = "opening.book";
+    private static final Map<Path, OpeningBook> books = new ConcurrentHashMap<>();
+    private static final OpeningBook EMPTY = new OpeningBook(null, 0);
+
+    private final ByteBuffer entries;
+    private final int size;
+
+    private OpeningBook(ByteBuffer entries, int size) {
+        this.entries = entries;
+        this.size = size;
+    }
+
+    /**
+     * @return the book named by the threeChess.book system property (or opening.book
+     *         in the working directory), or an empty book if there is no such file.
+     */
+    public static OpeningBook shared() {
+        return open(Paths.get(System.getProperty("threeChess.book", DEFAULT_PATH)));
+    }
+
+    /**
+     * Maps the book at the given path, reusing an existing mapping if there is one.
+     * 
+     * @param path the location of the book file.
+     * @return the book, or an empty book if the file is missing or malformed.
+     */
+    public static OpeningBook open(Path path) {
+        return books.computeIfAbsent(path.toAbsolutePath(), OpeningBook::map);
+    }
+
+    private static OpeningBook map(Path path) {
+        if (!Files.isReadable(path)) {
+            return EMPTY;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                return EMPTY;
+            }
+            int count = buffer.getInt(8);
+            if ((long) HEADER_BYTES + (long) count * ENTRY_BYTES > buffer.capacity()) {
+                return EMPTY;
+            }
+            return new OpeningBook(buffer, count);
+        } catch (IOException e) {
+            return EMPTY;
+        }
+    }
+
+    /**
+     * @return the number of (position, move) entries in the book.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Looks up the current position and picks one of its book moves at random,
+     * in proportion to the move weights.
+     * 
+     * @param board The representation of the game state.
+     * @return a legal two element array {start, end}, or null if the position is
+     *         not in the book.
+     */
+    public Position[] lookup(Board board) {
+        return lookup(board, null);
+    }
+
+    /**
+     * As {@link #lookup(Board)}, drawing the move from the given generator.
+     * 
+     * @param random the generator to use, or null to use the thread's own.
+     */
+    public Position[] lookup(Board board, SplittableRandom random) {
+        if (size == 0) {
+            return null;
+        }
+        long key = ZobristHash.canonical(board);
+        int first = firstIndex(key);
+        if (first < 0) {
+            return null;
+        }
+        long total = 0;
+        int last = first;
+        while (last < size && keyAt(last) == key) {
+            total += weightAt(last);
+            last++;
+        }
+        long pick = total == 0 ? 0
+                : random != null ? random.nextLong(total) : ThreadLocalRandom.current().nextLong(total);
+        for (int i = first; i < last; i++) {
+            pick -= weightAt(i);
+            if (pick < 0 || total == 0) {
+                Position[] move = ZobristHash.fromCanonical(moveAt(i), board.getTurn());
+                if (board.isLegalMove(move[0], move[1])) {
+                    return move;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Binary searches the sorted entries for the first entry with the given key.
+     */
+    private int firstIndex(long key) {
+        int low = 0;
+        int high = size - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long k = keyAt(mid);
+            if (k < key) {
+                low = mid + 1;
+            } else {
+                if (k == key) {
+                    found = mid;
+                }
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    private long keyAt(int i) {
+        return entries.getLong(HEADER_BYTES + i * ENTRY_BYTES);
+    }
+
+    private int moveAt(int i) {
+        return entries.getInt(HEADER_BYTES + i * ENTRY_BYTES + 8);
+    }
+
+    private int weightAt(int i) {
+        return entries.getInt(HEADER_BYTES + i * ENTRY_BYTES + 12);
+    }
+
+    /**
+     * Writes a book file from a map of position keys to their weighted moves.
+     * 
+     * @param path    the file to write.
+     * @param moves   a map from canonical position key to a map of canonical packed
+     *                move to weight.
+     * @throws IOException if the file cannot be written.
+     */
+    public static void write(Path path, Map<Long, Map<Integer, Integer>> moves) throws IOException {
+        TreeMap<Long, Map<Integer, Integer>> sorted = new TreeMap<>(moves);
+        int count = 0;
+        for (Map<Integer, Integer> m : sorted.values()) {
+            count += m.size();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + count * ENTRY_BYTES);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(count);
+        for (Map.Entry<Long, Map<Integer, Integer>> e : sorted.entrySet()) {
+            for (Map.Entry<Integer, Integer> m : e.getValue().entrySet()) {
+                buffer.putLong(e.getKey()).putInt(m.getKey()).putInt(m.getValue());
+            }
+        }
+        buffer.flip();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        books.remove(path.toAbsolutePath());
+    }
+}
@@ -0,0 +1,99 @@
+package threeChess.agents;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import threeChess.*;
+
+/**
+ * Builds an {@link OpeningBook} offline by running long MCTS searches from the
+ * starting position and the most played replies to it.
+ * 
+ * Usage: OpeningBookBuilder [file] [plies] [width] [millis per position] [threads]
+ */
+public class OpeningBookBuilder {
+
+    private final int plies;
+    private final int width;
+    private final long time;
+    private final int threads;
+    private final Map<Long, Map<Integer, Integer>> book = new ConcurrentHashMap<>();
+
+    /**
+     * @param plies   the number of plies from the start to cover.
+     * @param width   the number of most played moves kept and expanded at each position.
+     * @param time    the time in milliseconds to search each position for.
+     * @param threads the number of positions searched concurrently.
+     */
+    public OpeningBookBuilder(int plies, int width, long time, int threads) {
+        this.plies = plies;
+        this.width = width;
+        this.time = time;
+        this.threads = threads;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path out = Paths.get(args.length > 0 ? args[0] : "opening.book");
+        int plies = args.length > 1 ? Integer.parseInt(args[1]) : 6;
+        int width = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+        long time = args.length > 3 ? Long.parseLong(args[3]) : 10_000L;
+        int threads = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+        OpeningBookBuilder builder = new OpeningBookBuilder(plies, width, time, threads);
+        builder.build(new Board(0));
+        OpeningBook.write(out, builder.book);
+        System.out.println("Wrote " + builder.book.size() + " positions to " + out);
+    }
+
+    /**
+     * Expands the book breadth first, one ply at a time, searching all positions of
+     * a ply in parallel.
+     * 
+     * @param start the position the book starts from.
+     */
+    public void build(Board start) throws InterruptedException, ExecutionException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Board> frontier = Collections.singletonList(start);
+            for (int ply = 0; ply < plies && !frontier.isEmpty(); ply++) {
+                List<Future<List<Board>>> expanded = new ArrayList<>();
+                for (Board board : frontier) {
+                    expanded.add(pool.submit(() -> expand(board)));
+                }
+                List<Board> next = new ArrayList<>();
+                for (Future<List<Board>> f : expanded) {
+                    next.addAll(f.get());
+                }
+                frontier = next;
+                System.out.println("ply " + ply + ": " + book.size() + " positions");
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Searches one position, records its most played moves and returns the
+     * positions they lead to.
+     */
+    private List<Board> expand(Board board) throws CloneNotSupportedException, ImpossiblePositionException {
+        long key = ZobristHash.canonical(board);
+        List<Board> children = new ArrayList<>();
+        if (book.containsKey(key) || board.gameOver()) {
+            return children;
+        }
+        List<Map.Entry<Position[], Integer>> visits = new ArrayList<>(new MCTSAgent().rootVisits(board, time).entrySet());
+        visits.sort((a, b) -> b.getValue() - a.getValue());
+        Map<Integer, Integer> moves = new HashMap<>();
+        for (Map.Entry<Position[], Integer> e : visits.subList(0, Math.min(width, visits.size()))) {
+            Position[] move = e.getKey();
+            moves.put(ZobristHash.canonicalMove(move[0], move[1], board.getTurn()), e.getValue());
+            Board child = (Board) board.clone();
+            child.move(move[0], move[1]);
+            children.add(child);
+        }
+        if (book.putIfAbsent(key, moves) != null) {
+            children.clear();
+        }
+        return children;
+    }
+}
@@ -0,0 +1,48 @@
+package threeChess.agents;
+
+import threeChess.*;
+
+/**
+ * Packs a move (a start and end position) into a single int,
+ * so moves can be stored in compact binary formats and primitive arrays.
+ */
+public final class PackedMove {
+
+    private static final Position[] squares = Position.values();
+
+    private PackedMove() {
+    }
+
+    /**
+     * @param from the starting position of the piece.
+     * @param to   the end position of the piece.
+     * @return the move encoded as an int.
+     */
+    public static int encode(Position from, Position to) {
+        return (from.ordinal() << 7) | to.ordinal();
+    }
+
+    /**
+     * @param move a move encoded by {@link #encode}.
+     * @return the starting position of the move.
+     */
+    public static Position from(int move) {
+        return squares[move >>> 7];
+    }
+
+    /**
+     * @param move a move encoded by {@link #encode}.
+     * @return the end position of the move.
+     */
+    public static Position to(int move) {
+        return squares[move & 0x7F];
+    }
+
+    /**
+     * @param move a move encoded by {@link #encode}.
+     * @return the move as a two element array {start, end}.
+     */
+    public static Position[] decode(int move) {
+        return new Position[] { from(move), to(move) };
+    }
+}
@@ -0,0 +1,213 @@
+package threeChess.agents;
+
+import java.util.*;
+import threeChess.*;
+
+/**
+ * An index of where every piece is, kept alongside a board as it is moved so that
+ * searches do not have to copy Board.getPositions into new sets at every node.
+ *
+ * Squares are held by colour and piece type in small arrays, and each square
+ * remembers where it is stored, so adding, removing and moving a piece are O(1).
+ * Iteration order within a list depends on the order pieces were added and removed.
+ */
+public final class PieceList {
+
+    private static final Position[] squares = Position.values();
+    private static final PieceType[] types = PieceType.values();
+    private static final int COLOURS = Colour.values().length;
+    private static final int TYPES = types.length;
+    /** No more than 16 pieces of a colour can be on the board, whatever they promote to. */
+    private static final int CAPACITY = 16;
+
+    /** lists[colour * TYPES + type] holds the ordinals of the squares with those pieces. */
+    private final int[][] lists;
+    private final int[] counts;
+    /** For each square, (colour * TYPES + type) of the piece on it, or -1 if empty. */
+    private final int[] owner;
+    /** For each occupied square, its position in its list. */
+    private final int[] index;
+
+    private PieceList() {
+        lists = new int[COLOURS * TYPES][CAPACITY];
+        counts = new int[COLOURS * TYPES];
+        owner = new int[squares.length];
+        index = new int[squares.length];
+        Arrays.fill(owner, -1);
+    }
+
+    private PieceList(PieceList other) {
+        lists = new int[COLOURS * TYPES][];
+        for (int i = 0; i < lists.length; i++) {
+            lists[i] = other.lists[i].clone();
+        }
+        counts = other.counts.clone();
+        owner = other.owner.clone();
+        index = other.index.clone();
+    }
+
+    /**
+     * Builds the index square by square in ordinal order, rather than from the
+     * sets of Board.getPositions, so the order of its lists is the same in every run.
+     * 
+     * @param board The representation of the game state.
+     * @return an index of the pieces on the board.
+     */
+    public static PieceList of(Board board) {
+        PieceList pieces = new PieceList();
+        for (Position square : squares) {
+            Piece piece = board.getPiece(square);
+            if (piece != null) {
+                pieces.add(piece.getColour(), piece.getType(), square);
+            }
+        }
+        return pieces;
+    }
+
+    /**
+     * @return an independent copy of this index.
+     */
+    public PieceList copy() {
+        return new PieceList(this);
+    }
+
+    /**
+     * Places a piece on an empty square.
+     */
+    public void add(Colour colour, PieceType type, Position square) {
+        int list = colour.ordinal() * TYPES + type.ordinal();
+        int s = square.ordinal();
+        lists[list][counts[list]] = s;
+        index[s] = counts[list]++;
+        owner[s] = list;
+    }
+
+    /**
+     * Takes the piece off a square, if there is one.
+     */
+    public void remove(Position square) {
+        int s = square.ordinal();
+        int list = owner[s];
+        if (list < 0) {
+            return;
+        }
+        int last = lists[list][--counts[list]];
+        lists[list][index[s]] = last;
+        index[last] = index[s];
+        owner[s] = -1;
+    }
+
+    /**
+     * Updates the index for a move that has just been made on the board, including
+     * a capture on the end square, a pawn promotion, and the rook of a castle.
+     *
+     * @param after the board once the move has been made.
+     * @param start the square moved from.
+     * @param end   the square moved to.
+     */
+    public void move(Board after, Position start, Position end) {
+        int from = start.ordinal();
+        int list = owner[from];
+        if (list < 0) {
+            return;
+        }
+        remove(end);
+        int to = end.ordinal();
+        lists[list][index[from]] = to;
+        index[to] = index[from];
+        owner[to] = list;
+        owner[from] = -1;
+        Piece moved = after.getPiece(end);
+        if (moved != null && moved.getType().ordinal() != list % TYPES) {// promoted
+            remove(end);
+            add(moved.getColour(), moved.getType(), end);
+        }
+        if (list % TYPES == PieceType.KING.ordinal() && start.getRow() == 0) {
+            // a castle also moves a rook along the back row
+            for (int col = 0; col < 8; col++) {
+                try {
+                    sync(after, Position.get(start.getColour(), 0, col));
+                } catch (ImpossiblePositionException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes the index agree with the board on one square.
+     */
+    private void sync(Board board, Position square) {
+        Piece piece = board.getPiece(square);
+        int list = piece == null ? -1 : piece.getColour().ordinal() * TYPES + piece.getType().ordinal();
+        if (owner[square.ordinal()] != list) {
+            remove(square);
+            if (piece != null) {
+                add(piece.getColour(), piece.getType(), square);
+            }
+        }
+    }
+
+    /**
+     * @return the number of pieces of that colour and type.
+     */
+    public int count(Colour colour, PieceType type) {
+        return counts[colour.ordinal() * TYPES + type.ordinal()];
+    }
+
+    /**
+     * @return the number of pieces of that colour.
+     */
+    public int count(Colour colour) {
+        int n = 0;
+        for (int t = 0; t < TYPES; t++) {
+            n += counts[colour.ordinal() * TYPES + t];
+        }
+        return n;
+    }
+
+    /**
+     * @param i an index below {@link #count(Colour, PieceType)}.
+     * @return the square of the i-th piece of that colour and type.
+     */
+    public Position get(Colour colour, PieceType type, int i) {
+        return squares[lists[colour.ordinal() * TYPES + type.ordinal()][i]];
+    }
+
+    /**
+     * @return the squares of every piece of that colour, listed by piece type.
+     */
+    public Position[] positions(Colour colour) {
+        Position[] out = new Position[count(colour)];
+        int n = 0;
+        for (int t = 0; t < TYPES; t++) {
+            int list = colour.ordinal() * TYPES + t;
+            for (int i = 0; i < counts[list]; i++) {
+                out[n++] = squares[lists[list][i]];
+            }
+        }
+        return out;
+    }
+
+    /**
+     * @return the square of that colour's king, or null if it has been captured.
+     */
+    public Position king(Colour colour) {
+        return count(colour, PieceType.KING) > 0 ? get(colour, PieceType.KING, 0) : null;
+    }
+
+    /**
+     * @return the colour of the piece on the square, or null if it is empty.
+     */
+    public Colour colourAt(Position square) {
+        int list = owner[square.ordinal()];
+        return list < 0 ? null : Colour.values()[list / TYPES];
+    }
+
+    /**
+     * @return the type of the piece on the square, or null if it is empty.
+     */
+    public PieceType typeAt(Position square) {
+        int list = owner[square.ordinal()];
+        return list < 0 ? null : types[list % TYPES];
+    }
+}
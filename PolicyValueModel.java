@@ -0,0 +1,217 @@
+package threeChess.agents;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Arrays;
+import threeChess.*;
+
+/**
+ * A small linear policy and value model used by MCTSAgent as a move prior and as
+ * the value of a leaf in place of a rollout.
+ * 
+ * Positions are encoded as sparse binary features seen from one player: one feature
+ * per (piece colour relative to that player, piece type, square rotated into that
+ * player's frame), plus one for whose turn it is relative to that player.
+ * The value is tanh of the sum of the active feature weights and estimates the
+ * result for that player in [-1, 1]. The policy logit of a move is the sum of a
+ * weight for the moving piece type on its start square, one for it on its end
+ * square and one for the type of piece captured.
+ * 
+ * Scoring writes into caller supplied arrays and allocates nothing; encoding a
+ * position reads every square through {@link Board#getPiece}, so it costs
+ * whatever the board's lookups do.
+ * Weights are trained offline by {@link PolicyValueTrainer}.
+ */
+public final class PolicyValueModel {
+
+    public static final int MAGIC = 0x33435056;
+    public static final int VERSION = 1;
+    private static final Position[] squares = Position.values();
+    private static final int SQUARES = squares.length;
+    private static final int TYPES = PieceType.values().length;
+    public static final int PIECE_FEATURES = 3 * TYPES * SQUARES;
+    public static final int FEATURES = PIECE_FEATURES + 3;
+    /** The largest number of active features of a position: one per piece and the turn. */
+    public static final int MAX_ACTIVE = 3 * 16 + 1;
+
+    private static final String DEFAULT_PATH = "policyvalue.model";
+    private static volatile PolicyValueModel shared;
+    private static volatile boolean loaded;
+
+    final float[] value = new float[FEATURES];
+    final float[] from = new float[TYPES * SQUARES];
+    final float[] to = new float[TYPES * SQUARES];
+    final float[] capture = new float[TYPES + 1];
+    float bias;
+    /** The value weights followed by a zero for padding, copied on first use by {@link #values(LeafBatch)}. */
+    private volatile float[] padded;
+
+    /**
+     * @return the model in the file named by the threeChess.model system property
+     *         (or policyvalue.model in the working directory), read once per JVM,
+     *         or null if there is no such file or it is not a valid model.
+     */
+    public static PolicyValueModel shared() {
+        if (!loaded) {
+            synchronized (PolicyValueModel.class) {
+                if (!loaded) {
+                    Path path = Paths.get(System.getProperty("threeChess.model", DEFAULT_PATH));
+                    if (Files.isReadable(path)) {
+                        try {
+                            shared = load(path);
+                        } catch (IOException | RuntimeException e) {// a truncated or corrupt file is no model
+                        }
+                    }
+                    loaded = true;
+                }
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Encodes the position as seen by one player.
+     * 
+     * @param board       The representation of the game state.
+     * @param perspective the player the position is seen by.
+     * @param out         receives the indices of the active features, at least MAX_ACTIVE long.
+     * @return the number of active features.
+     */
+    public static int features(Board board, Colour perspective, int[] out) {
+        int frame = perspective.ordinal();
+        int n = 0;
+        // square by square, so the features (and the float sums over them) come in the same order every run
+        for (Position square : squares) {
+            Piece piece = board.getPiece(square);
+            if (piece != null) {
+                int relative = (piece.getColour().ordinal() - frame + 3) % 3;
+                int type = piece.getType().ordinal();
+                out[n++] = (relative * TYPES + type) * SQUARES + ZobristHash.rotate(square, -frame).ordinal();
+            }
+        }
+        out[n++] = PIECE_FEATURES + (board.getTurn().ordinal() - frame + 3) % 3;
+        return n;
+    }
+
+    /**
+     * @param features the active features of a position.
+     * @param n        the number of active features.
+     * @return the expected result, in [-1, 1], for the player the position was encoded for.
+     */
+    public float value(int[] features, int n) {
+        return (float) Math.tanh(rawValue(features, n));
+    }
+
+    float rawValue(int[] features, int n) {
+        float sum = bias;
+        for (int i = 0; i < n; i++) {
+            sum += value[features[i]];
+        }
+        return sum;
+    }
+
+    /**
+     * Scores a batch of positions.
+     * 
+     * @param features the active features of each position.
+     * @param counts   the number of active features of each position.
+     * @param batch    the number of positions.
+     * @param out      receives the value of each position.
+     */
+    public void values(int[][] features, int[] counts, int batch, float[] out) {
+        for (int b = 0; b < batch; b++) {
+            out[b] = value(features[b], counts[b]);
+        }
+    }
+
+    /**
+     * @param lanes the number of positions the batch should hold.
+     * @return an empty batch of positions for {@link #values(LeafBatch)}.
+     */
+    public static LeafBatch batch(int lanes) {
+        return new LeafBatch(lanes, MAX_ACTIVE, FEATURES);
+    }
+
+    /**
+     * Scores a batch of positions in one pass, with the Vector API where it is
+     * available. The weights are read as they were at the first call, so this is
+     * for playing with a loaded model rather than for training.
+     * 
+     * @param batch positions encoded by {@link #features}, from {@link #batch(int)};
+     *              their values are left in the batch.
+     */
+    public void values(LeafBatch batch) {
+        float[] weights = padded;
+        if (weights == null) {
+            weights = Arrays.copyOf(value, FEATURES + 1);
+            padded = weights;
+        }
+        BatchEvaluator.shared().sums(weights, batch);
+        for (int lane = 0; lane < batch.size; lane++) {
+            batch.out[lane] = (float) Math.tanh(bias + batch.out[lane]);
+        }
+    }
+
+    /**
+     * @param board The representation of the game state.
+     * @param start the starting position of the moving piece.
+     * @param end   the end position of the moving piece.
+     * @return the unnormalised log probability of the move being played.
+     */
+    public float logit(Board board, Position start, Position end) {
+        Piece mover = board.getPiece(start);
+        Piece target = board.getPiece(end);
+        int frame = mover.getColour().ordinal();
+        int type = mover.getType().ordinal();
+        return from[type * SQUARES + ZobristHash.rotate(start, -frame).ordinal()]
+                + to[type * SQUARES + ZobristHash.rotate(end, -frame).ordinal()]
+                + capture[target == null ? 0 : target.getType().ordinal() + 1];
+    }
+
+    /**
+     * @param path the model file.
+     * @return the model.
+     * @throws IOException if the file cannot be read or is not a model file.
+     */
+    public static PolicyValueModel load(Path path) throws IOException {
+        PolicyValueModel model = new PolicyValueModel();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            }
+            buffer.flip();
+            int floats = 1 + model.value.length + model.from.length + model.to.length + model.capture.length;
+            if (buffer.remaining() != 12 + floats * 4 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+                    || buffer.getInt() != FEATURES) {
+                throw new IOException("not a policy/value model: " + path);
+            }
+            model.bias = buffer.getFloat();
+            buffer.asFloatBuffer().get(model.value).get(model.from).get(model.to).get(model.capture);
+        }
+        return model;
+    }
+
+    /**
+     * @param path the file to write the model to.
+     * @throws IOException if the file cannot be written.
+     */
+    public void save(Path path) throws IOException {
+        int floats = 1 + value.length + from.length + to.length + capture.length;
+        ByteBuffer buffer = ByteBuffer.allocate(12 + floats * 4);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(FEATURES).putFloat(bias);
+        for (float[] weights : new float[][] { value, from, to, capture }) {
+            for (float w : weights) {
+                buffer.putFloat(w);
+            }
+        }
+        buffer.flip();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+}
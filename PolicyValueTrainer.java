@@ -0,0 +1,118 @@
+package threeChess.agents;
+
+import java.nio.file.*;
+import java.util.*;
+import threeChess.*;
+
+/**
+ * Trains a {@link PolicyValueModel} by stochastic gradient descent over recorded games.
+ * 
+ * Every position of every game is a training example: the value is fitted, from
+ * each player's point of view, to the final result for that player (1 won, -1 lost,
+ * 0 otherwise), and the policy is fitted, by softmax cross entropy over the legal
+ * moves, to the move that was actually played.
+ * 
+ * Usage: PolicyValueTrainer output-model-file epochs record-file...
+ */
+public class PolicyValueTrainer {
+
+    private static final float VALUE_RATE = 0.01f;
+    private static final float POLICY_RATE = 0.05f;
+
+    private final PolicyValueModel model;
+    private final SmartAgent moves = new SmartAgent(false);
+    private final int[] features = new int[PolicyValueModel.MAX_ACTIVE];
+
+    public PolicyValueTrainer(PolicyValueModel model) {
+        this.model = model;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path out = Paths.get(args[0]);
+        int epochs = Integer.parseInt(args[1]);
+        List<GameRecord> games = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            try (GameRecordReader reader = new GameRecordReader(Paths.get(args[i]))) {
+                for (GameRecord record = reader.next(); record != null; record = reader.next()) {
+                    games.add(record);
+                }
+            }
+        }
+        PolicyValueModel model = Files.isReadable(out) ? PolicyValueModel.load(out) : new PolicyValueModel();
+        PolicyValueTrainer trainer = new PolicyValueTrainer(model);
+        Random random = new Random(1);
+        for (int epoch = 0; epoch < epochs; epoch++) {
+            Collections.shuffle(games, random);
+            double loss = 0;
+            long positions = 0;
+            for (GameRecord game : games) {
+                loss += trainer.train(game);
+                positions += game.moves.length;
+            }
+            System.out.println("epoch " + epoch + ": value loss " + loss / Math.max(1, positions));
+        }
+        model.save(out);
+    }
+
+    /**
+     * Replays one game and takes a gradient step on each of its positions.
+     * 
+     * @param game a game from the standard starting position.
+     * @return the summed squared error of the value before each step.
+     */
+    public double train(GameRecord game) {
+        double loss = 0;
+        try {
+            Board board = game.replay(0);
+            for (int move : game.moves) {
+                for (Colour perspective : Colour.values()) {
+                    float target = perspective == game.winner ? 1f : perspective == game.loser ? -1f : 0f;
+                    loss += trainValue(board, perspective, target);
+                }
+                trainPolicy(board, PackedMove.from(move), PackedMove.to(move));
+                board.move(PackedMove.from(move), PackedMove.to(move));
+            }
+        } catch (ImpossiblePositionException e) {
+        }
+        return loss / 3;
+    }
+
+    private float trainValue(Board board, Colour perspective, float target) {
+        int n = PolicyValueModel.features(board, perspective, features);
+        float predicted = model.value(features, n);
+        float error = predicted - target;
+        float step = VALUE_RATE * error * (1 - predicted * predicted);
+        model.bias -= step;
+        for (int i = 0; i < n; i++) {
+            model.value[features[i]] -= step;
+        }
+        return error * error;
+    }
+
+    private void trainPolicy(Board board, Position start, Position end) {
+        Set<Position[]> legal = moves.makeLegalMoves(board, board.getTurn());
+        Position[][] options = legal.toArray(new Position[0][]);
+        float[] p = new float[options.length];
+        float max = -Float.MAX_VALUE;
+        for (int i = 0; i < options.length; i++) {
+            p[i] = model.logit(board, options[i][0], options[i][1]);
+            max = Math.max(max, p[i]);
+        }
+        float total = 0;
+        for (int i = 0; i < options.length; i++) {
+            p[i] = (float) Math.exp(p[i] - max);
+            total += p[i];
+        }
+        int squares = Position.values().length;
+        for (int i = 0; i < options.length; i++) {
+            float gradient = p[i] / total - (options[i][0] == start && options[i][1] == end ? 1f : 0f);
+            Piece mover = board.getPiece(options[i][0]);
+            Piece target = board.getPiece(options[i][1]);
+            int frame = mover.getColour().ordinal();
+            int type = mover.getType().ordinal();
+            model.from[type * squares + ZobristHash.rotate(options[i][0], -frame).ordinal()] -= POLICY_RATE * gradient;
+            model.to[type * squares + ZobristHash.rotate(options[i][1], -frame).ordinal()] -= POLICY_RATE * gradient;
+            model.capture[target == null ? 0 : target.getType().ordinal() + 1] -= POLICY_RATE * gradient;
+        }
+    }
+}
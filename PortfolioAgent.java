@@ -0,0 +1,250 @@
+package threeChess.agents;
+
+import java.util.*;
+import threeChess.*;
+
+/**
+ * A meta-agent that plays each move with the cheapest of its engines that is good
+ * enough for the position: {@link AggressiveAgent}, {@link SmartAgent} or
+ * {@link MCTSAgent}.
+ *
+ * Each position is classified by its phase (plies played and pieces left), its
+ * tactical density (opponents' pieces the player to move attacks, and its own
+ * pieces they attack),
+ * the number of moves of the player to move and the time it has left. A king
+ * capture only needs the greedy engine; a solved endgame or a quiet position only
+ * needs the one-ply evaluation; tactical positions and narrow endgames get the tree
+ * search, when the clock can afford it. An engine is only chosen if its average
+ * time per move so far fits in the time per move the clock allows.
+ *
+ * The engines are made once and kept for the whole game, without pondering or a
+ * warm start file, so the search tree and the shared tables stay warm whichever
+ * engine played last, and the portfolio is the only agent the game sees. The
+ * time each engine takes is tracked as an exponentially weighted moving average,
+ * which routes the moves and is reported by {@link #metrics()} to calibrate the
+ * thresholds.
+ */
+public class PortfolioAgent extends Agent implements SearchStatistics {
+
+    public static final int AGGRESSIVE = 0;
+    public static final int SMART = 1;
+    public static final int MCTS = 2;
+    private static final String[] ENGINE_NAMES = { "Aggressive", "SmartAgent", "MCTS" };
+
+    /** Plies from the start still treated as the opening. */
+    private static final int OPENING_PLIES = 24;
+    /** Pieces left on the board (of 48) below which the game is an endgame. */
+    private static final int ENDGAME_PIECES = 16;
+    /** Pieces attacking or attacked from which a position is tactical. */
+    private static final int TACTICAL = 4;
+    /** Legal moves below which an endgame is narrow enough to search deeply. */
+    private static final int NARROW = 20;
+    /** The number of our moves the remaining time is shared between. */
+    private static final int MOVES_LEFT = 40;
+    /** The weight of the latest move in the moving averages. */
+    private static final double ALPHA = 0.2;
+    /** Starting estimates of the milliseconds per move of each engine. */
+    private static final double[] PRIOR_MILLIS = { 1, 50, 2000 };
+
+    private String name = "Portfolio";
+    private final Agent[] engines;
+    private final double[] meanMillis = PRIOR_MILLIS.clone();
+    private final long[] moves = new long[ENGINE_NAMES.length];
+    private final long[] totalMillis = new long[ENGINE_NAMES.length];
+    private volatile int lastEngine = -1;
+
+    /**
+     * A no argument constructor, required for tournament management.
+     **/
+    public PortfolioAgent() {
+        this(new AggressiveAgent(), new SmartAgent(false), new MCTSAgent(false, false));
+    }
+
+    /**
+     * The engines are shown the final board only to clean up, so they should not
+     * be built to save anything of their own at the end of a game.
+     *
+     * @param aggressive the engine for king captures and short clocks.
+     * @param smart      the engine for quiet positions and solved endgames.
+     * @param mcts       the engine for tactical positions and narrow endgames.
+     **/
+    public PortfolioAgent(AggressiveAgent aggressive, SmartAgent smart, MCTSAgent mcts) {
+        engines = new Agent[] { aggressive, smart, mcts };
+    }
+
+    /**
+     * Play a move in the game. The agent is given a Board Object representing the
+     * position of all pieces, the history of the game and whose turn it is. They
+     * respond with a move represented by a pair (two element array) of positions:
+     * the start and the end position of the move.
+     *
+     * @param board The representation of the game state.
+     * @return a two element array of Position objects, where the first element is
+     *         the current position of the piece to be moved, and the second element
+     *         is the position to move that piece to.
+     **/
+    public Position[] playMove(Board board) {
+        int engine = route(board);
+        long startTime = System.nanoTime();
+        Position[] move = engines[engine].playMove(board);
+        if (move == null && engine != AGGRESSIVE) {
+            move = engines[AGGRESSIVE].playMove(board);
+        }
+        record(engine, (System.nanoTime() - startTime) / 1_000_000L);
+        return move;
+    }
+
+    /**
+     * Classifies the position and picks the engine to play it.
+     *
+     * @param board The representation of the game state.
+     * @return AGGRESSIVE, SMART or MCTS.
+     */
+    public int route(Board board) {
+        Colour turn = board.getTurn();
+        PieceList pieces = PieceList.of(board);
+        if (KingAttacks.kingCapture(board, turn) != null) {// the greedy engine takes it at once
+            return AGGRESSIVE;
+        }
+        if (EndgameTable.distance(pieces, turn) != EndgameTable.UNKNOWN) {
+            return affordable(SMART, board) ? SMART : AGGRESSIVE;
+        }
+        int left = 0;
+        for (Colour colour : Colour.values()) {
+            left += pieces.count(colour);
+        }
+        BitBoard bits = BitBoard.of(board, pieces);
+        int mobility = bits.mobility(turn);
+        int tactical = tactical(bits, turn);
+        boolean opening = board.getMoveCount() < OPENING_PLIES;
+        boolean endgame = left < ENDGAME_PIECES;
+        boolean sharp = tactical >= TACTICAL || (endgame && mobility < NARROW);
+        if (sharp && !opening && affordable(MCTS, board)) {
+            return MCTS;
+        }
+        return affordable(SMART, board) ? SMART : AGGRESSIVE;
+    }
+
+    /**
+     * @return the number of opponents' pieces the player to move attacks, plus the
+     *         number of its own pieces an opponent attacks.
+     */
+    private static int tactical(BitBoard bits, Colour turn) {
+        long[] own = new long[2];
+        long[] attacks = new long[2];
+        long[] occupied = new long[2];
+        bits.occupancy(turn, own);
+        bits.attacks(turn, attacks);
+        int count = 0;
+        for (Colour colour : Colour.values()) {
+            if (colour == turn) {
+                continue;
+            }
+            bits.occupancy(colour, occupied);
+            count += BitBoard.count(attacks[0] & occupied[0], attacks[1] & occupied[1]);
+        }
+        for (Colour colour : Colour.values()) {
+            if (colour == turn) {
+                continue;
+            }
+            bits.attacks(colour, attacks);
+            count += BitBoard.count(attacks[0] & own[0], attacks[1] & own[1]);
+        }
+        return count;
+    }
+
+    /**
+     * @return true if and only if the engine's average time per move fits in this
+     *         move's share of the clock, or the game is not timed.
+     */
+    private synchronized boolean affordable(int engine, Board board) {
+        long left = board.getTimeLeft(board.getTurn());
+        return left <= 0 || meanMillis[engine] <= (double) left / MOVES_LEFT;
+    }
+
+    /**
+     * Adds a move to the engine's timing.
+     */
+    private synchronized void record(int engine, long millis) {
+        meanMillis[engine] = moves[engine] == 0 ? millis : ALPHA * millis + (1 - ALPHA) * meanMillis[engine];
+        moves[engine]++;
+        totalMillis[engine] += millis;
+        lastEngine = engine;
+    }
+
+    /**
+     * @param engine AGGRESSIVE, SMART or MCTS.
+     * @return the moving average of the engine's milliseconds per move, or its
+     *         starting estimate if it has not played yet.
+     */
+    public synchronized double meanMillis(int engine) {
+        return meanMillis[engine];
+    }
+
+    /**
+     * @param engine AGGRESSIVE, SMART or MCTS.
+     * @return the number of moves the engine has played.
+     */
+    public synchronized long moves(int engine) {
+        return moves[engine];
+    }
+
+    /**
+     * @return one line per engine with its moves, average and total time.
+     */
+    public synchronized String metrics() {
+        StringBuilder out = new StringBuilder();
+        for (int e = 0; e < engines.length; e++) {
+            out.append(String.format("%-10s moves=%d mean=%.1fms total=%dms%n", ENGINE_NAMES[e], moves[e],
+                    meanMillis[e], totalMillis[e]));
+        }
+        return out.toString();
+    }
+
+    /**
+     * @return the statistics of the last engine to play, if it keeps any.
+     */
+    public Map<Position[], Integer> lastVisits() {
+        int engine = lastEngine;
+        if (engine >= 0 && engines[engine] instanceof SearchStatistics) {
+            return ((SearchStatistics) engines[engine]).lastVisits();
+        }
+        return Collections.emptyMap();
+    }
+
+    public double lastEval() {
+        int engine = lastEngine;
+        if (engine >= 0 && engines[engine] instanceof SearchStatistics) {
+            return ((SearchStatistics) engines[engine]).lastEval();
+        }
+        return 0.0;
+    }
+
+    public int lastPlayouts() {
+        int engine = lastEngine;
+        if (engine >= 0 && engines[engine] instanceof SearchStatistics) {
+            return ((SearchStatistics) engines[engine]).lastPlayouts();
+        }
+        return 0;
+    }
+
+    /**
+     * @return the Agent's name, for annotating game description.
+     * **/
+    public String toString(){
+        return name;
+    }
+
+    /**
+     * Lets every engine stop its background work and clear its tree, and resets the
+     * routing for the next game while keeping the engines' timings. The engines keep
+     * nothing past the game, so this writes nothing.
+     * @param finalBoard the end position of the board
+     * **/
+    public void finalBoard(Board finalBoard){
+        for (Agent engine : engines) {
+            engine.finalBoard(finalBoard);
+        }
+        lastEngine = -1;
+    }
+}
@@ -2,7 +2,8 @@ package threeChess.agents;
 
 import threeChess.*;
 
-import java.util.Random;
+import java.util.Arrays;
+import java.util.SplittableRandom;
 
 /**
  * An interface for AI bots to implement.
@@ -13,14 +14,24 @@ import java.util.Random;
 public class RandomAgent extends Agent{
   
   private static final String name = "Random";
-  private static final Random random = new Random();
+  private final SplittableRandom random;
 
 
   /**
    * A no argument constructor, 
    * required for tournament management.
+   * The generator is seeded from the threeChess.seed system property if it is set.
    * **/
   public RandomAgent(){
+    random = Seeds.next();
+  }
+
+  /**
+   * An agent that plays the same moves in the same positions for the same seed.
+   * @param seed the seed of the agent's random number generator.
+   * **/
+  public RandomAgent(long seed){
+    random = new SplittableRandom(seed);
   }
 
   /**
@@ -36,6 +47,7 @@ public class RandomAgent extends Agent{
    * **/
   public Position[] playMove(Board board){
     Position[] pieces = board.getPositions(board.getTurn()).toArray(new Position[0]);
+    Arrays.sort(pieces); //set order differs between runs
     Position start = pieces[0];
     Position end = pieces[0]; //dummy illegal move
     while (!board.isLegalMove(start, end)){
@@ -0,0 +1,263 @@
+package threeChess.agents;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.*;
+import threeChess.*;
+
+/**
+ * Precomputed move geometry of every piece on every square, following the rules
+ * of Board.isLegalMove: sliding pieces flip their step directions once they leave
+ * the section they started in, and pawns only capture diagonally.
+ * 
+ * Rays are indexed by [colour][piece type][square] and hold, for each step of the
+ * piece type, the ordinals of the squares reached by repeating that step until it
+ * leaves the board (once for pieces that do not slide). Attack lines are the
+ * reverse index used to answer "which pieces can capture on this square": for each
+ * target square and attacking colour, every (start square, squares in between,
+ * piece types) that reaches it.
+ * 
+ * The geometry does not depend on the pieces on the board, but Board.step is an
+ * instance method, so the tables are built from the first board they are asked for,
+ * unless they can be read from the {@link TableSnapshot}.
+ */
+public final class Rays {
+
+    private static final Position[] squares = Position.values();
+    private static final int SQUARES = squares.length;
+    private static final int TYPES = PieceType.values().length;
+    private static final int MAX_SLIDE = 16;
+    private static volatile Rays instance;
+
+    /** rays[colour][type][square][step] = squares reached, in order. */
+    final int[][][][][] rays;
+    /** captureRays[colour][type][square][step], as rays but only the steps that may capture. */
+    final int[][][][][] captureRays;
+    /** lines[colour][target] = attack lines of that colour ending on the target square. */
+    final Line[][][] lines;
+
+    /**
+     * A way for a piece on one square to capture on another.
+     */
+    static final class Line {
+        final int from;
+        final int[] between;
+        /** Bit i is set if piece type i can move along this line. */
+        int types;
+
+        Line(int from, int[] between) {
+            this.from = from;
+            this.between = between;
+        }
+    }
+
+    private Rays(Board board) {
+        int colours = Colour.values().length;
+        rays = new int[colours][TYPES][SQUARES][][];
+        captureRays = new int[colours][TYPES][SQUARES][][];
+        List<Map<String, Line>> reverse = new ArrayList<>();
+        for (int i = 0; i < colours * SQUARES; i++) {
+            reverse.add(new HashMap<>());
+        }
+        for (Colour colour : Colour.values()) {
+            for (PieceType type : PieceType.values()) {
+                Piece mover = new Piece(type, colour);
+                Direction[][] steps = type.getSteps();
+                boolean slides = type.getStepReps() > 1;
+                for (Position start : squares) {
+                    int[][] forType = new int[steps.length][];
+                    List<int[]> captures = new ArrayList<>();
+                    for (int i = 0; i < steps.length; i++) {
+                        forType[i] = walk(board, mover, steps[i], start, slides);
+                        if (type != PieceType.PAWN || i > 1) {
+                            captures.add(forType[i]);
+                        }
+                    }
+                    rays[colour.ordinal()][type.ordinal()][start.ordinal()] = forType;
+                    captureRays[colour.ordinal()][type.ordinal()][start.ordinal()] = captures.toArray(new int[0][]);
+                    for (int[] ray : captures) {
+                        for (int j = 0; j < ray.length; j++) {
+                            int[] between = Arrays.copyOf(ray, j);
+                            Map<String, Line> into = reverse.get(colour.ordinal() * SQUARES + ray[j]);
+                            Line line = into.computeIfAbsent(start.ordinal() + ":" + Arrays.toString(between),
+                                    k -> new Line(start.ordinal(), between));
+                            line.types |= 1 << type.ordinal();
+                        }
+                    }
+                }
+            }
+        }
+        lines = new Line[colours][SQUARES][];
+        for (int c = 0; c < colours; c++) {
+            for (int s = 0; s < SQUARES; s++) {
+                Collection<Line> into = reverse.get(c * SQUARES + s).values();
+                Line[] sorted = into.toArray(new Line[0]);
+                // short lines first: they are the cheapest to test
+                Arrays.sort(sorted, (a, b) -> a.between.length - b.between.length);
+                lines[c][s] = sorted;
+            }
+        }
+    }
+
+    /**
+     * Reads the tables written by {@link #encode()}.
+     */
+    private Rays(ByteBuffer in) {
+        int colours = Colour.values().length;
+        rays = new int[colours][TYPES][SQUARES][][];
+        captureRays = new int[colours][TYPES][SQUARES][][];
+        lines = new Line[colours][SQUARES][];
+        for (int[][][][][] table : Arrays.asList(rays, captureRays)) {
+            for (int c = 0; c < colours; c++) {
+                for (int t = 0; t < TYPES; t++) {
+                    for (int s = 0; s < SQUARES; s++) {
+                        int[][] steps = new int[in.get() & 0xFF][];
+                        for (int i = 0; i < steps.length; i++) {
+                            steps[i] = readSquares(in);
+                        }
+                        table[c][t][s] = steps;
+                    }
+                }
+            }
+        }
+        for (int c = 0; c < colours; c++) {
+            for (int s = 0; s < SQUARES; s++) {
+                Line[] into = new Line[in.getShort() & 0xFFFF];
+                for (int i = 0; i < into.length; i++) {
+                    int from = in.get() & 0xFF;
+                    int types = in.get() & 0xFF;
+                    into[i] = new Line(from, readSquares(in));
+                    into[i].types = types;
+                }
+                lines[c][s] = into;
+            }
+        }
+    }
+
+    private static int[] readSquares(ByteBuffer in) {
+        int[] squares = new int[in.get() & 0xFF];
+        for (int i = 0; i < squares.length; i++) {
+            squares[i] = in.get() & 0xFF;
+        }
+        return squares;
+    }
+
+    /**
+     * @return the tables as bytes for a {@link TableSnapshot}: the rays, then the
+     *         capture rays, each as a count of steps per colour, type and square
+     *         followed by each step's length and squares, then for each colour and
+     *         target the attack lines as {from, types, length, squares in between}.
+     */
+    byte[] encode() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int[][][][][] table : Arrays.asList(rays, captureRays)) {
+            for (int[][][][] forColour : table) {
+                for (int[][][] forType : forColour) {
+                    for (int[][] steps : forType) {
+                        out.write(steps.length);
+                        for (int[] step : steps) {
+                            writeSquares(out, step);
+                        }
+                    }
+                }
+            }
+        }
+        for (Line[][] forColour : lines) {
+            for (Line[] into : forColour) {
+                out.write(into.length >>> 8);
+                out.write(into.length);
+                for (Line line : into) {
+                    out.write(line.from);
+                    out.write(line.types);
+                    writeSquares(out, line.between);
+                }
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeSquares(ByteArrayOutputStream out, int[] squares) {
+        out.write(squares.length);
+        for (int square : squares) {
+            out.write(square);
+        }
+    }
+
+    /**
+     * @param board any board, used only for its step function.
+     * @return the shared tables, read from the snapshot or built on first use.
+     */
+    public static Rays of(Board board) {
+        if (instance == null) {
+            synchronized (Rays.class) {
+                if (instance == null) {
+                    Rays read = null;
+                    ByteBuffer section = TableSnapshot.shared().section(TableSnapshot.RAYS);
+                    if (section != null) {
+                        try {
+                            read = new Rays(section);
+                        } catch (RuntimeException e) {// a snapshot of other geometry: build the tables instead
+                            System.err.println("Ignoring the rays in the table snapshot: " + e);
+                        }
+                    }
+                    instance = read != null ? read : build(board);
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @param board any board, used only for its step function.
+     * @return new tables built from the board's geometry, ignoring any snapshot.
+     */
+    static Rays build(Board board) {
+        return new Rays(board);
+    }
+
+    /**
+     * Follows one step type from a square, the way Board.isLegalMove does.
+     */
+    private static int[] walk(Board board, Piece mover, Direction[] step, Position start, boolean slides) {
+        int[] ray = new int[slides ? MAX_SLIDE : 1];
+        int n = 0;
+        try {
+            Position tmp = board.step(mover, step, start);
+            ray[n++] = tmp.ordinal();
+            while (slides && n < MAX_SLIDE) {
+                Direction[] next = step;
+                if (tmp.getColour() != start.getColour()) {// flip steps when moving between board sections.
+                    next = new Direction[step.length];
+                    for (int j = 0; j < step.length; j++) {
+                        switch (step[j]) {
+                            case FORWARD:
+                                next[j] = Direction.BACKWARD;
+                                break;
+                            case BACKWARD:
+                                next[j] = Direction.FORWARD;
+                                break;
+                            case LEFT:
+                                next[j] = Direction.RIGHT;
+                                break;
+                            case RIGHT:
+                                next[j] = Direction.LEFT;
+                                break;
+                        }
+                    }
+                }
+                tmp = board.step(mover, next, tmp);
+                ray[n++] = tmp.ordinal();
+            }
+        } catch (ImpossiblePositionException e) {
+        } // the ray went off the board.
+        return Arrays.copyOf(ray, n);
+    }
+
+    /**
+     * @param square an ordinal of Position.
+     * @return the position with that ordinal.
+     */
+    static Position square(int square) {
+        return squares[square];
+    }
+}
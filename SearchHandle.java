@@ -0,0 +1,130 @@
+package threeChess.agents;
+
+import java.util.concurrent.*;
+import threeChess.*;
+
+/**
+ * A search running in the background, as returned by {@link AnytimeSearch#search}.
+ *
+ * The search publishes its best move so far, with its evaluation and the number
+ * of playouts or positions searched, each time it improves. The result completes
+ * with the best move when the search finishes, or at once with the best move so
+ * far when the search is cancelled; the search itself stops at its next check,
+ * and nothing it publishes after cancellation can change the result.
+ */
+public final class SearchHandle {
+
+    private final CompletableFuture<Position[]> result = new CompletableFuture<>();
+    private final long started = System.nanoTime();
+    private volatile Position[] best;
+    private volatile double eval;
+    private volatile long playouts;
+    private volatile boolean cancelled;
+
+    /**
+     * Records a new best move, unless the search has been cancelled or finished.
+     *
+     * @param move     the best move found so far.
+     * @param eval     the searcher's evaluation of that move.
+     * @param playouts the number of playouts or positions searched so far.
+     */
+    synchronized void publish(Position[] move, double eval, long playouts) {
+        if (cancelled || result.isDone() || move == null) {
+            return;
+        }
+        this.best = move;
+        this.eval = eval;
+        this.playouts = playouts;
+    }
+
+    /**
+     * Publishes the final move and completes the result.
+     *
+     * @return the move the result completed with, which is the best so far at
+     *         cancellation if the search was cancelled first.
+     */
+    synchronized Position[] finish(Position[] move, double eval, long playouts) {
+        publish(move, eval, playouts);
+        result.complete(best);
+        return best;
+    }
+
+    /**
+     * Stops the search: the result completes now with the best move so far.
+     */
+    public synchronized void cancel() {
+        cancelled = true;
+        result.complete(best);
+    }
+
+    /**
+     * @return true if and only if the search has been asked to stop.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return true if and only if the result is available.
+     */
+    public boolean isDone() {
+        return result.isDone();
+    }
+
+    /**
+     * @return the best move found so far, or null if none has been published yet.
+     */
+    public Position[] best() {
+        return best;
+    }
+
+    /**
+     * @return the searcher's evaluation of the best move so far.
+     */
+    public double eval() {
+        return eval;
+    }
+
+    /**
+     * @return the number of playouts or positions searched when the best move so
+     *         far was published.
+     */
+    public long playouts() {
+        return playouts;
+    }
+
+    /**
+     * @return the milliseconds since the search started.
+     */
+    public long elapsedMillis() {
+        return (System.nanoTime() - started) / 1_000_000L;
+    }
+
+    /**
+     * @return a future completed with the chosen move; completing or cancelling it
+     *         does not affect the search.
+     */
+    public CompletableFuture<Position[]> future() {
+        return result.copy();
+    }
+
+    /**
+     * Waits for the result for at most the given time, then cancels the search and
+     * takes the best move so far.
+     *
+     * @param millis the longest time to wait.
+     * @return the chosen move, or null if the search never published one.
+     */
+    public Position[] await(long millis) {
+        try {
+            return result.get(Math.max(0, millis), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            cancel();
+        } catch (InterruptedException e) {
+            cancel();
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+        }
+        return result.getNow(best);
+    }
+}
@@ -0,0 +1,28 @@
+package threeChess.agents;
+
+import java.util.Map;
+import threeChess.*;
+
+/**
+ * Implemented by agents that can report the results of the search behind their
+ * last move, for collecting self-play training data.
+ */
+public interface SearchStatistics {
+
+    /**
+     * @return a map from each root move {start, end} searched in the last call to
+     *         playMove to the number of times it was visited.
+     */
+    Map<Position[], Integer> lastVisits();
+
+    /**
+     * @return the agent's evaluation of the move it played last.
+     */
+    double lastEval();
+
+    /**
+     * @return the number of simulations or positions searched for the last move,
+     *         0 if it was not searched.
+     */
+    int lastPlayouts();
+}
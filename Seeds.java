@@ -0,0 +1,32 @@
+package threeChess.agents;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Random number generators for agents built with their no argument constructors.
+ * 
+ * If the threeChess.seed system property is set, the n-th agent constructed gets a
+ * generator seeded from it and n, so that a run which constructs its agents in the
+ * same order replays the same games; otherwise the generators are seeded randomly.
+ * Agents split their generator for each thread that searches, so threads never
+ * share one.
+ */
+final class Seeds {
+
+    private static final AtomicLong constructed = new AtomicLong();
+
+    private Seeds() {
+    }
+
+    /**
+     * @return a generator for a new agent.
+     */
+    static SplittableRandom next() {
+        Long seed = Long.getLong("threeChess.seed");
+        if (seed == null) {
+            return new SplittableRandom();
+        }
+        return new SplittableRandom(seed + constructed.getAndIncrement() * 0x9E3779B97F4A7C15L);
+    }
+}
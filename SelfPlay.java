@@ -0,0 +1,239 @@
+package threeChess.agents;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import threeChess.*;
+
+/**
+ * Generates training data by playing many games concurrently between configurable agents.
+ * 
+ * Each worker thread plays whole games and samples positions along the way, with the
+ * search results of the agent to move. Once a game is over the outcome is filled in
+ * and its samples are handed to a single writer thread in batches, through a bounded
+ * queue: if the disk falls behind, the workers block instead of buffering without limit.
+ * When the threeChess.record system property names a file, each game is also
+ * appended to it once as a {@link GameRecord}.
+ * 
+ * Each sample is written as: int length of the rest, byte turn, short ply, 96 bytes
+ * of placement (see {@link GameRecord#placement}), float eval, byte outcome for the
+ * side to move (1 won, -1 lost, 0 otherwise), short number of root moves, then
+ * {int packed move, int visits} for each root move.
+ * 
+ * Usage: SelfPlay [file] [games] [threads] [sample rate] [blue agent] [green agent] [red agent]
+ */
+public class SelfPlay {
+
+    private static final int MAX_PLIES = 1000;
+    private static final int BATCH_BYTES = 1 << 20;
+    private static final int QUEUE_BATCHES = 16;
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final String[] seats;
+    private final double sampleRate;
+    private final BlockingQueue<ByteBuffer> queue = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+    private final AtomicInteger samples = new AtomicInteger();
+
+    /**
+     * @param seats      the class names of the agents playing blue, green and red.
+     * @param sampleRate the probability of sampling each position.
+     */
+    public SelfPlay(String[] seats, double sampleRate) {
+        this.seats = seats;
+        this.sampleRate = sampleRate;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path out = Paths.get(args.length > 0 ? args[0] : "selfplay.bin");
+        int games = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        double rate = args.length > 3 ? Double.parseDouble(args[3]) : 0.25;
+        String[] seats = { "MCTSAgent", "MCTSAgent", "MCTSAgent" };
+        for (int i = 0; i < 3 && i + 4 < args.length; i++) {
+            seats[i] = args[i + 4];
+        }
+        long startTime = System.nanoTime();
+        SelfPlay selfPlay = new SelfPlay(seats, rate);
+        selfPlay.run(out, games, threads);
+        System.out.println(games + " games, " + selfPlay.samples.get() + " samples in "
+                + (System.nanoTime() - startTime) / 1_000_000L + "ms");
+    }
+
+    /**
+     * Plays the games on a pool of worker threads and writes their samples to the file.
+     * 
+     * @param out     the file to append samples to.
+     * @param games   the number of games to play.
+     * @param threads the number of games played at once.
+     */
+    public void run(Path out, int games, int threads) throws InterruptedException {
+        Thread writer = new Thread(() -> drain(out), "selfplay-writer");
+        writer.start();
+        AtomicInteger next = new AtomicInteger();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                ByteBuffer batch = ByteBuffer.allocate(BATCH_BYTES);
+                try {
+                    while (next.getAndIncrement() < games) {
+                        try {
+                            playGame(batch);
+                        } catch (InterruptedException e) {
+                            throw e;
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                    }
+                    hand(batch, 0);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "selfplay-" + t);
+            workers[t].start();
+        }
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } finally {
+            queue.put(END);
+            writer.join();
+        }
+    }
+
+    /**
+     * Plays one game and appends its samples to the worker's batch.
+     */
+    private void playGame(ByteBuffer batch) throws Exception {
+        Agent[] agents = new Agent[3];
+        Board board = new Board(0);
+        List<Sample> taken = new ArrayList<>();
+        GameRecord.Log log = new GameRecord.Log();
+        Colour forfeit = null;
+        try {
+            for (int i = 0; i < 3; i++) {
+                String name = seats[i].contains(".") ? seats[i] : "threeChess.agents." + seats[i];
+                agents[i] = (Agent) Class.forName(name).getDeclaredConstructor().newInstance();
+            }
+            while (!board.gameOver() && board.getMoveCount() < MAX_PLIES) {
+                Colour turn = board.getTurn();
+                Agent agent = agents[turn.ordinal()];
+                long startTime = System.nanoTime();
+                Position[] move = agent.playMove((Board) board.clone());
+                if (move == null || !board.isLegalMove(move[0], move[1])) {
+                    forfeit = turn;
+                    break;
+                }
+                log.record(board.getMoveCount(), (System.nanoTime() - startTime) / 1_000_000L, agent);
+                if (ThreadLocalRandom.current().nextDouble() < sampleRate) {
+                    Sample sample = new Sample(turn, board.getMoveCount(), GameRecord.placement(board));
+                    if (agent instanceof SearchStatistics) {
+                        sample.eval = (float) ((SearchStatistics) agent).lastEval();
+                        sample.visits = ((SearchStatistics) agent).lastVisits();
+                    }
+                    taken.add(sample);
+                }
+                board.move(move[0], move[1]);
+            }
+        } finally {// the agents stop their searches even if the game failed
+            for (Agent agent : agents) {
+                if (agent != null) {
+                    agent.finalBoard(board);
+                }
+            }
+        }
+        Colour winner = forfeit == null ? board.getWinner() : null;
+        Colour loser = forfeit == null ? board.getLoser() : forfeit;
+        GameRecordWriter records = GameRecordWriter.shared();
+        if (records != null) {
+            records.write(GameRecord.fromBoard(board, log, winner, loser));
+        }
+        for (Sample sample : taken) {
+            byte outcome = (byte) (sample.turn == winner ? 1 : sample.turn == loser ? -1 : 0);
+            int size = sample.encodedSize();
+            hand(batch, size);
+            sample.writeTo(batch, outcome);
+        }
+        samples.addAndGet(taken.size());
+    }
+
+    /**
+     * Hands the batch to the writer once it cannot take another sample of the given
+     * size, blocking while the queue is full.
+     */
+    private void hand(ByteBuffer batch, int size) throws InterruptedException {
+        if (batch.remaining() >= size && size > 0) {
+            return;
+        }
+        if (batch.position() > 0) {
+            ByteBuffer full = ByteBuffer.allocate(batch.position());
+            batch.flip();
+            full.put(batch).flip();
+            batch.clear();
+            queue.put(full);
+        }
+    }
+
+    /**
+     * Writes batches to the file until the end marker is taken from the queue.
+     */
+    private void drain(Path out) {
+        try (FileChannel channel = FileChannel.open(out, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            for (ByteBuffer batch = queue.take(); batch != END; batch = queue.take()) {
+                while (batch.hasRemaining()) {
+                    channel.write(batch);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            // keep taking batches so the workers are never blocked on a dead writer
+            try {
+                while (queue.take() != END) {
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A position sampled from a game, waiting for the game's outcome.
+     */
+    private static class Sample {
+        private final Colour turn;
+        private final int ply;
+        private final byte[] placement;
+        private float eval;
+        private Map<Position[], Integer> visits = Collections.emptyMap();
+
+        private Sample(Colour turn, int ply, byte[] placement) {
+            this.turn = turn;
+            this.ply = ply;
+            this.placement = placement;
+        }
+
+        private int encodedSize() {
+            return 4 + 1 + 2 + placement.length + 4 + 1 + 2 + visits.size() * 8;
+        }
+
+        private void writeTo(ByteBuffer buffer, byte outcome) {
+            buffer.putInt(encodedSize() - 4);
+            buffer.put((byte) turn.ordinal());
+            buffer.putShort((short) ply);
+            buffer.put(placement);
+            buffer.putFloat(eval);
+            buffer.put(outcome);
+            buffer.putShort((short) visits.size());
+            for (Map.Entry<Position[], Integer> e : visits.entrySet()) {
+                buffer.putInt(PackedMove.encode(e.getKey()[0], e.getKey()[1])).putInt(e.getValue());
+            }
+        }
+    }
+}
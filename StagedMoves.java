@@ -0,0 +1,149 @@
+package threeChess.agents;
+
+import java.util.*;
+import threeChess.*;
+
+/**
+ * Generates the legal moves of a player lazily, in stages: captures of a king
+ * first, then the other captures, most valuable victim (and then least valuable
+ * attacker) first, then the moves to empty squares. A stage is only generated
+ * once the moves of the one before it have all been taken, so a caller that
+ * stops at the first acceptable move skips most of the work.
+ *
+ * Moves follow the geometry of {@link Rays} and are checked with
+ * Board.isLegalMove before they are returned. Castling is not generated.
+ */
+public final class StagedMoves implements Iterator<Position[]> {
+
+    public static final int KING_CAPTURE = 0;
+    public static final int CAPTURE = 1;
+    public static final int QUIET = 2;
+    private static final int DONE = 3;
+
+    private final Board board;
+    private final PieceList pieces;
+    private final Colour turn;
+    private final Rays rays;
+    private final List<Position[]> buffer = new ArrayList<>();
+    private int generated = -1;
+    private int next;
+    private int stage = -1;
+
+    /**
+     * @param board The representation of the game state, whose player to move's
+     *              moves are generated.
+     */
+    public StagedMoves(Board board) {
+        this(board, PieceList.of(board));
+    }
+
+    /**
+     * @param board  The representation of the game state, whose player to move's
+     *               moves are generated.
+     * @param pieces The index of the pieces on the board.
+     */
+    public StagedMoves(Board board, PieceList pieces) {
+        this.board = board;
+        this.pieces = pieces;
+        this.turn = board.getTurn();
+        this.rays = Rays.of(board);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == buffer.size() && generated < DONE - 1) {
+            buffer.clear();
+            next = 0;
+            generate(++generated);
+        }
+        return next < buffer.size();
+    }
+
+    @Override
+    public Position[] next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        stage = generated;
+        return buffer.get(next++);
+    }
+
+    /**
+     * @return the stage (KING_CAPTURE, CAPTURE or QUIET) of the move last returned
+     *         by {@link #next()}.
+     */
+    public int stage() {
+        return stage;
+    }
+
+    /**
+     * @return every move not yet returned, in order.
+     */
+    public List<Position[]> rest() {
+        List<Position[]> moves = new ArrayList<>();
+        while (hasNext()) {
+            moves.add(next());
+        }
+        return moves;
+    }
+
+    private void generate(int stage) {
+        if (stage == KING_CAPTURE) {
+            for (Position[] move : KingAttacks.kingCaptures(board, turn)) {
+                add(move[0], move[1]);
+            }
+        } else if (stage == CAPTURE) {
+            List<int[]> scored = new ArrayList<>();
+            for (Position square : pieces.positions(turn)) {
+                PieceType mover = pieces.typeAt(square);
+                for (int[] ray : rays.captureRays[turn.ordinal()][mover.ordinal()][square.ordinal()]) {
+                    for (int target : ray) {
+                        Position end = Rays.square(target);
+                        Colour owner = pieces.colourAt(end);
+                        if (owner == null) {
+                            continue;
+                        }
+                        PieceType victim = pieces.typeAt(end);
+                        if (owner != turn && victim != PieceType.KING) {
+                            scored.add(new int[] { victim.getValue() * 64 - mover.getValue(), square.ordinal(), target });
+                        }
+                        break;
+                    }
+                }
+            }
+            scored.sort((a, b) -> b[0] - a[0]);
+            for (int[] capture : scored) {
+                add(Rays.square(capture[1]), Rays.square(capture[2]));
+            }
+        } else if (stage == QUIET) {
+            for (Position square : pieces.positions(turn)) {
+                PieceType mover = pieces.typeAt(square);
+                int[][] steps = rays.rays[turn.ordinal()][mover.ordinal()][square.ordinal()];
+                if (mover == PieceType.PAWN) {
+                    // forward one, or two from the pawn's first row, onto empty squares
+                    for (int i = 0; i < Math.min(2, steps.length) && steps[i].length > 0; i++) {
+                        if (pieces.colourAt(Rays.square(steps[i][0])) != null) {
+                            break;
+                        }
+                        add(square, Rays.square(steps[i][0]));
+                    }
+                    continue;
+                }
+                for (int[] ray : steps) {
+                    for (int target : ray) {
+                        if (pieces.colourAt(Rays.square(target)) != null) {
+                            break;
+                        }
+                        add(square, Rays.square(target));
+                    }
+                }
+            }
+        }
+    }
+
+    private void add(Position start, Position end) {
+        if (board.isLegalMove(start, end)) {
+            buffer.add(new Position[] { start, end });
+        }
+    }
+}
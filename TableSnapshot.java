@@ -0,0 +1,216 @@
+package threeChess.agents;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+import threeChess.*;
+
+/**
+ * A versioned binary snapshot of the precomputed tables, so that a new JVM maps
+ * them from disk instead of rebuilding them before its first move.
+ *
+ * The file starts with a header (magic, version, squares, colours, piece types,
+ * CRC32 of the rest of the file, fingerprint of the generating code, number of
+ * sections), then a table of sections {int id, int offset, int length}, then the
+ * sections themselves. The fingerprint is a CRC32 of the Zobrist seed and of the
+ * class files of the code that builds the tables, so a snapshot written before
+ * that code changed is not read. A snapshot whose header, geometry, checksum or
+ * fingerprint does not match is ignored, and every table is then built as before.
+ *
+ * The file is mapped the first time any table asks for it, and each table decodes
+ * its own section only when its class is first used, so tables a run never touches
+ * cost nothing.
+ *
+ * Usage: TableSnapshot [file]
+ */
+public final class TableSnapshot {
+
+    public static final int MAGIC = 0x33435453;
+    public static final int VERSION = 2;
+    public static final int HEADER_BYTES = 32;
+    public static final int SECTION_BYTES = 12;
+
+    /** Zobrist keys and square rotations, see {@link ZobristHash}. */
+    public static final int ZOBRIST = 1;
+    /** Rays and attack lines, see {@link Rays}. */
+    public static final int RAYS = 2;
+    /** Capture masks of the pieces that do not slide, see {@link BitBoard}. */
+    public static final int LEAPERS = 3;
+
+    private static final String DEFAULT_PATH = "tables.snap";
+    /** The classes whose code decides the contents of the tables. */
+    private static final Class<?>[] GENERATORS = { ZobristHash.class, Rays.class, BitBoard.class, Board.class,
+            Position.class };
+    private static final TableSnapshot EMPTY = new TableSnapshot(null, Collections.emptyMap());
+
+    private final ByteBuffer file;
+    /** Section id to {offset, length}. */
+    private final Map<Integer, int[]> sections;
+
+    private TableSnapshot(ByteBuffer file, Map<Integer, int[]> sections) {
+        this.file = file;
+        this.sections = sections;
+    }
+
+    /**
+     * Maps the snapshot on first use.
+     */
+    private static final class Holder {
+        static final TableSnapshot INSTANCE = open(
+                Paths.get(System.getProperty("threeChess.tables", DEFAULT_PATH)));
+    }
+
+    /**
+     * @return the snapshot named by the threeChess.tables system property (or
+     *         tables.snap in the working directory), or an empty snapshot if there is
+     *         no such file or it is not valid.
+     */
+    public static TableSnapshot shared() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Maps and validates the snapshot at the given path.
+     *
+     * @param path the location of the snapshot file.
+     * @return the snapshot, or an empty snapshot if the file is missing or invalid.
+     */
+    public static TableSnapshot open(Path path) {
+        if (!Files.isReadable(path)) {
+            return EMPTY;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_BYTES || channel.size() > Integer.MAX_VALUE) {
+                return EMPTY;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+                    || buffer.getInt(8) != Position.values().length || buffer.getInt(12) != Colour.values().length
+                    || buffer.getInt(16) != PieceType.values().length) {
+                return EMPTY;
+            }
+            if (buffer.getInt(20) != checksum(buffer) || buffer.getInt(24) != fingerprint()) {
+                return EMPTY;
+            }
+            int count = buffer.getInt(28);
+            if ((long) HEADER_BYTES + (long) count * SECTION_BYTES > buffer.capacity()) {
+                return EMPTY;
+            }
+            Map<Integer, int[]> sections = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                int at = HEADER_BYTES + i * SECTION_BYTES;
+                int offset = buffer.getInt(at + 4);
+                int length = buffer.getInt(at + 8);
+                if (offset < 0 || length < 0 || (long) offset + length > buffer.capacity()) {
+                    return EMPTY;
+                }
+                sections.put(buffer.getInt(at), new int[] { offset, length });
+            }
+            return new TableSnapshot(buffer, sections);
+        } catch (IOException e) {
+            return EMPTY;
+        }
+    }
+
+    /**
+     * @return the CRC32 of everything after the header.
+     */
+    private static int checksum(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        ByteBuffer rest = buffer.duplicate();
+        rest.position(HEADER_BYTES);
+        crc.update(rest);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Reads the class files without initialising the classes, since the tables
+     * being initialised ask for the snapshot while it is being opened.
+     *
+     * @return the CRC32 of the Zobrist seed and of the class files of the code that
+     *         builds the tables; a class file that cannot be read counts as empty.
+     */
+    static int fingerprint() {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(Long.BYTES).putLong(0, ZobristHash.SEED));
+        for (Class<?> generator : GENERATORS) {
+            String file = generator.getSimpleName() + ".class";
+            try (InputStream in = generator.getResourceAsStream(file)) {
+                if (in != null) {
+                    byte[] chunk = new byte[8192];
+                    for (int n; (n = in.read(chunk)) > 0;) {
+                        crc.update(chunk, 0, n);
+                    }
+                }
+            } catch (IOException e) {
+            }
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * @param id ZOBRIST, RAYS or LEAPERS.
+     * @return a read only buffer over the section, positioned at its start, or null
+     *         if the snapshot does not have it.
+     */
+    public ByteBuffer section(int id) {
+        int[] at = sections.get(id);
+        if (at == null) {
+            return null;
+        }
+        ByteBuffer slice = file.asReadOnlyBuffer();
+        slice.position(at[0]).limit(at[0] + at[1]);
+        return slice.slice();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path out = Paths.get(args.length > 0 ? args[0] : System.getProperty("threeChess.tables", DEFAULT_PATH));
+        long startTime = System.nanoTime();
+        Rays rays = Rays.build(new Board(0));
+        Map<Integer, byte[]> sections = new TreeMap<>();
+        sections.put(ZOBRIST, ZobristHash.encode());
+        sections.put(RAYS, rays.encode());
+        sections.put(LEAPERS, BitBoard.encodeLeapers(rays));
+        write(out, sections);
+        System.out.println("Wrote " + sections.size() + " tables to " + out + " in "
+                + (System.nanoTime() - startTime) / 1_000_000L + "ms");
+    }
+
+    /**
+     * Writes a snapshot from the encoded sections.
+     *
+     * @param path     the file to write.
+     * @param sections a map from section id to its bytes.
+     * @throws IOException if the file cannot be written.
+     */
+    public static void write(Path path, Map<Integer, byte[]> sections) throws IOException {
+        int size = HEADER_BYTES + sections.size() * SECTION_BYTES;
+        for (byte[] section : sections.values()) {
+            size += section.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(Position.values().length).putInt(Colour.values().length)
+                .putInt(PieceType.values().length).putInt(0).putInt(fingerprint()).putInt(sections.size());
+        int offset = HEADER_BYTES + sections.size() * SECTION_BYTES;
+        for (Map.Entry<Integer, byte[]> e : sections.entrySet()) {
+            buffer.putInt(e.getKey()).putInt(offset).putInt(e.getValue().length);
+            offset += e.getValue().length;
+        }
+        for (byte[] section : sections.values()) {
+            buffer.put(section);
+        }
+        buffer.putInt(20, checksum(buffer));
+        buffer.flip();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+}
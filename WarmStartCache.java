@@ -0,0 +1,250 @@
+package threeChess.agents;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.*;
+import java.util.Arrays;
+
+/**
+ * Persists the most played MCTS nodes between games in a memory mapped file, so
+ * that repeated games against the same opponents start from what earlier games
+ * learnt instead of from an empty tree.
+ * 
+ * The file holds a header (magic, version, entry count) and fixed size entries
+ * {long key, int plays, float wins, int age}, where the key is the canonical
+ * Zobrist hash used by {@link NodeTable}. An entry's age counts the games since
+ * its statistics last changed; entries older than the maximum age are dropped.
+ * Any number of agents, in one JVM or several, may share one file.
+ */
+public final class WarmStartCache {
+
+    public static final int MAGIC = 0x33435753;
+    public static final int VERSION = 1;
+    private static final int HEADER_BYTES = 12;
+    private static final int ENTRY_BYTES = 20;
+    private static final int MIN_PLAYS = 4;
+    private static final int MAX_AGE = Integer.getInteger("threeChess.warmStartAge", 8);
+    private static final Object lock = new Object();
+    /** Whether a failed load or save has been reported, guarded by lock. */
+    private static boolean reported;
+
+    private final Path path;
+    private final int limit;
+    private long[] loadedKeys = new long[0];
+    private int[] loadedPlays = new int[0];
+    private int[] loadedAges = new int[0];
+
+    /**
+     * @param path  the cache file.
+     * @param limit the maximum number of nodes kept in the file.
+     */
+    public WarmStartCache(Path path, int limit) {
+        this.path = path;
+        this.limit = limit;
+    }
+
+    /**
+     * @return the cache named by the threeChess.warmStart system property, keeping at
+     *         most half the node budget of the given table, or null if not enabled.
+     */
+    public static WarmStartCache shared(NodeTable nodes) {
+        String file = System.getProperty("threeChess.warmStart");
+        return file == null ? null : new WarmStartCache(Paths.get(file), nodes.budget() / 2);
+    }
+
+    /**
+     * Fills the table with the nodes stored in the file, keeping the most played
+     * ones if the table is smaller than the file.
+     * 
+     * @param nodes the table to warm.
+     */
+    public void load(NodeTable nodes) {
+        synchronized (lock) {
+            if (!Files.isReadable(path)) {
+                return;
+            }
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                    return;
+                }
+                int count = Math.min(buffer.getInt(8), (buffer.capacity() - HEADER_BYTES) / ENTRY_BYTES);
+                // entries are stored most played first
+                count = Math.min(count, Math.min(limit, nodes.budget() - 1));
+                long[] keys = new long[count];
+                int[] plays = new int[count];
+                int[] ages = new int[count];
+                for (int i = 0; i < count; i++) {
+                    int at = HEADER_BYTES + i * ENTRY_BYTES;
+                    keys[i] = buffer.getLong(at);
+                    plays[i] = buffer.getInt(at + 8);
+                    ages[i] = buffer.getInt(at + 16);
+                    int slot = nodes.insert(keys[i]);
+                    nodes.update(slot, plays[i] - nodes.plays(slot), buffer.getFloat(at + 12) - nodes.wins(slot));
+                }
+                sortByKey(keys, plays, ages);
+                loadedKeys = keys;
+                loadedPlays = plays;
+                loadedAges = ages;
+            } catch (IOException e) {
+                report("load", e);
+            }
+        }
+    }
+
+    /**
+     * Merges the most played nodes of the table into the file. Nodes loaded at the
+     * start of the game whose statistics did not change get one game older; nodes
+     * in the file but not in the table, such as those saved by other agents, are
+     * kept with their age, one game older if this agent loaded them. The merge holds
+     * a lock on a file beside the cache, and the result is written beside the cache
+     * and moved into place, so concurrent agents neither lose each other's nodes nor
+     * see a partial file.
+     * 
+     * @param nodes the table at the end of a game.
+     */
+    public void save(NodeTable nodes) {
+        int n = 0;
+        int[] slots = new int[nodes.size()];
+        for (int slot = 0; slot < nodes.capacity() && n < slots.length; slot++) {
+            if (nodes.keyAt(slot) != 0 && nodes.plays(slot) >= MIN_PLAYS && age(nodes, slot) <= MAX_AGE) {
+                slots[n++] = slot;
+            }
+        }
+        long[] written = new long[n];
+        for (int i = 0; i < n; i++) {
+            written[i] = nodes.keyAt(slots[i]);
+        }
+        Arrays.sort(written);
+        synchronized (lock) {
+            Path lockPath = path.resolveSibling(path.getFileName() + ".lock");
+            try (FileChannel held = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                FileLock fileLock = held.lock();
+                try {
+                    merge(nodes, slots, n, written);
+                } finally {
+                    fileLock.release();
+                }
+            } catch (IOException e) {
+                report("save", e);
+            }
+        }
+    }
+
+    /**
+     * Merges the chosen nodes with those in the file and writes the result, while
+     * holding the lock.
+     */
+    private void merge(NodeTable nodes, int[] slots, int n, long[] written) throws IOException {
+        ByteBuffer stored = read();
+        int storedCount = stored == null ? 0 : stored.getInt(8);
+        long[] keys = new long[n + storedCount];
+        int[] plays = new int[keys.length];
+        float[] wins = new float[keys.length];
+        int[] ages = new int[keys.length];
+        for (int i = 0; i < n; i++) {
+            keys[i] = nodes.keyAt(slots[i]);
+            plays[i] = nodes.plays(slots[i]);
+            wins[i] = nodes.wins(slots[i]);
+            ages[i] = age(nodes, slots[i]);
+        }
+        int total = n;
+        for (int i = 0; i < storedCount; i++) {
+            int at = HEADER_BYTES + i * ENTRY_BYTES;
+            long key = stored.getLong(at);
+            if (Arrays.binarySearch(written, key) >= 0) {
+                continue;
+            }
+            int age = stored.getInt(at + 16) + (Arrays.binarySearch(loadedKeys, key) >= 0 ? 1 : 0);
+            if (age <= MAX_AGE) {
+                keys[total] = key;
+                plays[total] = stored.getInt(at + 8);
+                wins[total] = stored.getFloat(at + 12);
+                ages[total] = age;
+                total++;
+            }
+        }
+        long[] order = new long[total];
+        for (int i = 0; i < total; i++) {
+            order[i] = ((long) plays[i] << 32) | i;
+        }
+        Arrays.sort(order);
+        int count = Math.min(total, limit);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + count * ENTRY_BYTES);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(count);
+        for (int i = 0; i < count; i++) {
+            int e = (int) order[total - 1 - i];
+            buffer.putLong(keys[e]).putInt(plays[e]).putFloat(wins[e]).putInt(ages[e]);
+        }
+        buffer.flip();
+        Path directory = path.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Reports the first failure to load or save a cache, since a game does not need
+     * its warm start and every later game would likely fail the same way.
+     */
+    private void report(String what, IOException e) {
+        if (!reported) {
+            reported = true;
+            System.err.println("Could not " + what + " the warm start cache " + path + ": " + e);
+        }
+    }
+
+    /**
+     * @return the whole cache file, or null if it is missing or not valid.
+     */
+    private ByteBuffer read() throws IOException {
+        if (!Files.isReadable(path)) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+                || buffer.getInt(8) < 0 || buffer.getInt(8) > (buffer.capacity() - HEADER_BYTES) / ENTRY_BYTES) {
+            return null;
+        }
+        return buffer;
+    }
+
+    /**
+     * @return 0 for a node played this game, otherwise one more than its stored age.
+     */
+    private int age(NodeTable nodes, int slot) {
+        int i = Arrays.binarySearch(loadedKeys, nodes.keyAt(slot));
+        if (i < 0 || loadedPlays[i] != nodes.plays(slot)) {
+            return 0;
+        }
+        return loadedAges[i] + 1;
+    }
+
+    private static void sortByKey(long[] keys, int[] plays, int[] ages) {
+        Integer[] order = new Integer[keys.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(keys[a], keys[b]));
+        long[] k = keys.clone();
+        int[] p = plays.clone();
+        int[] g = ages.clone();
+        for (int i = 0; i < order.length; i++) {
+            keys[i] = k[order[i]];
+            plays[i] = p[order[i]];
+            ages[i] = g[order[i]];
+        }
+    }
+}
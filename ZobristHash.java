@@ -0,0 +1,194 @@
+package threeChess.agents;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import threeChess.*;
+
+/**
+ * Zobrist hashing of three player board states.
+ * The keys are generated from a fixed seed so that hashes computed by one JVM
+ * (for example when building an opening book offline) match those computed by another.
+ * 
+ * The board is symmetric under rotating the colours (BLUE to GREEN to RED), so
+ * {@link #canonical} hashes a position as seen by the player to move: every square
+ * and piece colour is rotated so that player is BLUE. Positions that differ only
+ * by such a rotation share a key, and moves are stored in the same rotated frame
+ * with {@link #canonicalMove} and {@link #fromCanonical}.
+ */
+public final class ZobristHash {
+
+    /** The seed of the keys; a constant, so reading it does not load the tables. */
+    static final long SEED = 0x3C4E55L;
+    private static final int SQUARES = Position.values().length;
+    private static final long[][][] pieceKeys = new long[Colour.values().length][PieceType.values().length][SQUARES];
+    private static final long[] turnKeys = new long[Colour.values().length];
+    private static final Position[] squares = Position.values();
+    // rotations[k][s] is the ordinal of square s with its section moved k colours on
+    private static final int[][] rotations = new int[Colour.values().length][SQUARES];
+
+    static {
+        ByteBuffer section = TableSnapshot.shared().section(TableSnapshot.ZOBRIST);
+        if (section == null || section.remaining() != encodedSize()) {
+            generate(pieceKeys, turnKeys, rotations);
+        } else {
+            read(section);
+        }
+    }
+
+    private ZobristHash() {
+    }
+
+    /**
+     * Fills the tables from the fixed seed.
+     */
+    private static void generate(long[][][] pieceKeys, long[] turnKeys, int[][] rotations) {
+        Random random = new Random(SEED);
+        for (int c = 0; c < pieceKeys.length; c++) {
+            for (int t = 0; t < pieceKeys[c].length; t++) {
+                for (int s = 0; s < SQUARES; s++) {
+                    pieceKeys[c][t][s] = random.nextLong();
+                }
+            }
+        }
+        for (int c = 0; c < turnKeys.length; c++) {
+            turnKeys[c] = random.nextLong();
+        }
+        for (int k = 0; k < rotations.length; k++) {
+            for (Position square : squares) {
+                try {
+                    rotations[k][square.ordinal()] = Position.get(rotate(square.getColour(), k), square.getRow(),
+                            square.getColumn()).ordinal();
+                } catch (ImpossiblePositionException e) {
+                } // every section has the same rows and columns
+            }
+        }
+    }
+
+    private static void read(ByteBuffer in) {
+        for (long[][] forColour : pieceKeys) {
+            for (long[] forType : forColour) {
+                for (int s = 0; s < SQUARES; s++) {
+                    forType[s] = in.getLong();
+                }
+            }
+        }
+        for (int c = 0; c < turnKeys.length; c++) {
+            turnKeys[c] = in.getLong();
+        }
+        for (int[] rotation : rotations) {
+            for (int s = 0; s < SQUARES; s++) {
+                rotation[s] = in.get() & 0xFF;
+            }
+        }
+    }
+
+    private static int encodedSize() {
+        int colours = Colour.values().length;
+        return (colours * PieceType.values().length * SQUARES + colours) * 8 + colours * SQUARES;
+    }
+
+    /**
+     * @return the keys and rotations, generated afresh from the seed, as bytes for a
+     *         {@link TableSnapshot}: every piece key, then every turn key, then each
+     *         rotation as one byte per square.
+     */
+    static byte[] encode() {
+        int colours = Colour.values().length;
+        long[][][] pieces = new long[colours][PieceType.values().length][SQUARES];
+        long[] turns = new long[colours];
+        int[][] rotated = new int[colours][SQUARES];
+        ByteBuffer out = ByteBuffer.allocate(encodedSize());
+        generate(pieces, turns, rotated);
+        for (long[][] forColour : pieces) {
+            for (long[] forType : forColour) {
+                for (long key : forType) {
+                    out.putLong(key);
+                }
+            }
+        }
+        for (long key : turns) {
+            out.putLong(key);
+        }
+        for (int[] rotation : rotated) {
+            for (int s : rotation) {
+                out.put((byte) s);
+            }
+        }
+        return out.array();
+    }
+
+    /**
+     * Hashes the placement of every piece on the board together with whose turn it is.
+     * 
+     * @param board The representation of the game state.
+     * @return a 64 bit key identifying the position.
+     */
+    public static long hash(Board board) {
+        long h = turnKeys[board.getTurn().ordinal()];
+        for (Colour colour : Colour.values()) {
+            for (Position square : board.getPositions(colour)) {
+                h ^= pieceKeys[colour.ordinal()][board.getPiece(square).getType().ordinal()][square.ordinal()];
+            }
+        }
+        return h;
+    }
+
+    /**
+     * Hashes the position as seen by the player whose turn it is, so that positions
+     * equal up to a rotation of the colours have the same key.
+     * 
+     * @param board The representation of the game state.
+     * @return a 64 bit key identifying the position up to rotation.
+     */
+    public static long canonical(Board board) {
+        int frame = board.getTurn().ordinal();
+        int[] rotation = rotations[(3 - frame) % 3];
+        long h = turnKeys[0];
+        for (Colour colour : Colour.values()) {
+            int relative = (colour.ordinal() - frame + 3) % 3;
+            for (Position square : board.getPositions(colour)) {
+                h ^= pieceKeys[relative][board.getPiece(square).getType().ordinal()][rotation[square.ordinal()]];
+            }
+        }
+        return h;
+    }
+
+    /**
+     * @param square a position on the board.
+     * @param k      the number of colours to rotate by, forward from BLUE to GREEN to RED.
+     * @return the matching position in the section k colours on.
+     */
+    public static Position rotate(Position square, int k) {
+        return squares[rotations[((k % 3) + 3) % 3][square.ordinal()]];
+    }
+
+    /**
+     * Packs a move in the frame where the given player is BLUE.
+     * 
+     * @param from  the starting position of the piece.
+     * @param to    the end position of the piece.
+     * @param frame the player the move is seen by, normally the mover.
+     * @return the rotated move as a {@link PackedMove}.
+     */
+    public static int canonicalMove(Position from, Position to, Colour frame) {
+        int k = (3 - frame.ordinal()) % 3;
+        return PackedMove.encode(squares[rotations[k][from.ordinal()]], squares[rotations[k][to.ordinal()]]);
+    }
+
+    /**
+     * Undoes {@link #canonicalMove}.
+     * 
+     * @param move  a move packed in the frame where the given player is BLUE.
+     * @param frame the player the move was seen by.
+     * @return the move {start, end} on the actual board.
+     */
+    public static Position[] fromCanonical(int move, Colour frame) {
+        int k = frame.ordinal();
+        return new Position[] { squares[rotations[k][PackedMove.from(move).ordinal()]],
+                squares[rotations[k][PackedMove.to(move).ordinal()]] };
+    }
+
+    private static Colour rotate(Colour colour, int k) {
+        return Colour.values()[(colour.ordinal() + k) % 3];
+    }
+}
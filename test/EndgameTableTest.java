@@ -0,0 +1,166 @@
+package threeChess.agents;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import threeChess.*;
+
+/**
+ * Checks solved endgame tables against a brute force search of a few plies.
+ *
+ * Positions are sampled at random from each table in the directory named by the
+ * threeChess.endgames system property (or endgames), and solved again by a plain
+ * depth first search over the same geometry and rules as {@link EndgameGenerator}:
+ * an entry of d plies must be won within d plies and not within d - 1, and an entry
+ * of 0 must not be won within the search depth. Tables are built by
+ * EndgameGenerator; if there are none, nothing is checked.
+ *
+ * Usage: EndgameTableTest [samples per distance]
+ */
+public class EndgameTableTest {
+
+    private static final int SQUARES = EndgameTable.SQUARES;
+    private static final int KING = PieceType.KING.ordinal();
+    /** The longest win solved by brute force. */
+    private static final int DEPTH = 5;
+
+    private final Rays rays = Rays.of(new Board(0));
+    private final int extra;
+
+    private EndgameTableTest(int extra) {
+        this.extra = extra;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int samples = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        Path directory = Paths.get(System.getProperty("threeChess.endgames", "endgames"));
+        int tables = 0;
+        for (PieceType type : PieceType.values()) {
+            Path file = directory.resolve(EndgameTable.fileName(type));
+            if (type == PieceType.KING || type == PieceType.PAWN || !Files.isReadable(file)) {
+                continue;
+            }
+            ByteBuffer entries;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                entries = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            check(entries.getInt(8) == type.ordinal(), "piece type in the header of " + file);
+            new EndgameTableTest(type.ordinal()).check(entries, samples, new Random(type.ordinal()));
+            tables++;
+        }
+        System.out.println("EndgameTableTest: " + tables + " tables checked"
+                + (tables == 0 ? " (build some with EndgameGenerator into " + directory + ")" : ""));
+    }
+
+    private void check(ByteBuffer entries, int samples, Random random) {
+        int[] found = new int[DEPTH + 1];
+        for (int tries = 0; tries < 10_000_000 && min(found) < samples; tries++) {
+            int turn = random.nextInt(3);
+            int[] placed = new int[4];
+            for (int p = 0; p < 4; p++) {
+                placed[p] = random.nextInt(SQUARES);
+            }
+            if (!distinct(placed)) {
+                continue;
+            }
+            int d = entries.get(EndgameTable.HEADER_BYTES
+                    + EndgameTable.index(turn, placed[0], placed[1], placed[2], placed[3])) & 0xFF;
+            if (d > DEPTH || found[d] >= samples) {
+                continue;
+            }
+            found[d]++;
+            String where = "turn " + turn + " at " + Arrays.toString(placed) + " solved in " + d;
+            if (d == 0) {
+                check(!won(turn, placed, DEPTH), where + ", but brute force wins it within " + DEPTH);
+            } else {
+                check(won(turn, placed, d), where + ", but brute force does not win it");
+                check(!won(turn, placed, d - 1), where + ", but brute force wins it sooner");
+            }
+        }
+        System.out.println("EndgameTableTest: " + PieceType.values()[extra] + " positions by distance "
+                + Arrays.toString(found));
+    }
+
+    /**
+     * @return true if and only if the strong side can force a king capture within
+     *         the given plies, the lone kings playing together against it. A lone
+     *         king that can take anything, or cannot move, is never beaten.
+     */
+    private boolean won(int turn, int[] placed, int plies) {
+        if (plies <= 0) {
+            return false;
+        }
+        if (turn == 0) {
+            for (int p = 0; p < 2; p++) {
+                for (int[] ray : rays.rays[0][p == 0 ? KING : extra][placed[p]]) {
+                    for (int to : ray) {
+                        int at = occupant(placed, to);
+                        if (at >= 2) {
+                            return true;
+                        }
+                        if (at >= 0) {
+                            break;
+                        }
+                        int[] after = placed.clone();
+                        after[p] = to;
+                        if (won(1, after, plies - 1)) {
+                            return true;
+                        }
+                    }
+                }
+            }
+            return false;
+        }
+        int p = turn + 1;
+        boolean moved = false;
+        for (int[] ray : rays.rays[turn][KING][placed[p]]) {
+            for (int to : ray) {
+                if (occupant(placed, to) >= 0) {
+                    return false;
+                }
+                int[] after = placed.clone();
+                after[p] = to;
+                if (!won((turn + 1) % 3, after, plies - 1)) {
+                    return false;
+                }
+                moved = true;
+            }
+        }
+        return moved;
+    }
+
+    private static int occupant(int[] placed, int square) {
+        for (int p = 0; p < placed.length; p++) {
+            if (placed[p] == square) {
+                return p;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean distinct(int[] placed) {
+        for (int i = 0; i < placed.length; i++) {
+            for (int j = i + 1; j < placed.length; j++) {
+                if (placed[i] == placed[j]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static int min(int[] counts) {
+        int min = Integer.MAX_VALUE;
+        for (int count : counts) {
+            min = Math.min(min, count);
+        }
+        return min;
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package threeChess.agents;
+
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+import threeChess.*;
+
+/**
+ * Round trips game records through their binary layout, and through a file with
+ * {@link GameRecordWriter} and {@link GameRecordReader}, including a record larger
+ * than either's buffer.
+ *
+ * Usage: GameRecordTest
+ */
+public class GameRecordTest {
+
+    public static void main(String[] args) throws Exception {
+        Random random = new Random(42);
+        List<GameRecord> records = new ArrayList<>();
+        records.add(random(random, 0, null, null));
+        records.add(random(random, 1, Colour.values()[0], null));
+        records.add(random(random, 300, Colour.values()[0], Colour.values()[Colour.values().length - 1]));
+        records.add(random(random, (1 << 20) / GameRecord.PLY_BYTES + 7, null, Colour.values()[0]));
+
+        for (GameRecord record : records) {
+            ByteBuffer buffer = ByteBuffer.allocate(record.encodedSize());
+            record.writeTo(buffer);
+            check(!buffer.hasRemaining(), "encodedSize matches what is written");
+            buffer.flip();
+            check(buffer.getInt() == record.encodedSize() - 4, "length prefix");
+            same(record, GameRecord.readFrom(buffer));
+        }
+
+        Path file = Files.createTempFile("games", ".bin");
+        try {
+            try (GameRecordWriter writer = new GameRecordWriter(file)) {
+                for (GameRecord record : records) {
+                    writer.write(record);
+                }
+            }
+            try (GameRecordReader reader = new GameRecordReader(file)) {
+                for (GameRecord record : records) {
+                    same(record, reader.next());
+                }
+                check(reader.next() == null, "end of file after the last record");
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+
+        GameRecord.Log log = new GameRecord.Log();
+        log.record(200, 7, 11, 0.5);
+        GameRecord start = GameRecord.fromBoard(new Board(0), log);
+        check(start.moves.length == 0, "no moves from the start position");
+        check(start.replay(0).getMoveCount() == 0, "replay of an empty game");
+        GameRecord forfeited = GameRecord.fromBoard(new Board(0), log, null, Colour.values()[1]);
+        check(forfeited.winner == null && forfeited.loser == Colour.values()[1], "a forfeit is recorded as a loss");
+        System.out.println("GameRecordTest: " + records.size() + " records ok");
+    }
+
+    private static GameRecord random(Random random, int plies, Colour winner, Colour loser) {
+        Position[] squares = Position.values();
+        int[] moves = new int[plies];
+        int[] millis = new int[plies];
+        int[] playouts = new int[plies];
+        float[] evals = new float[plies];
+        for (int i = 0; i < plies; i++) {
+            moves[i] = PackedMove.encode(squares[random.nextInt(squares.length)], squares[random.nextInt(squares.length)]);
+            millis[i] = random.nextInt(10_000);
+            playouts[i] = random.nextInt();
+            evals[i] = (float) random.nextGaussian();
+        }
+        return new GameRecord(moves, millis, playouts, evals, winner, loser);
+    }
+
+    private static void same(GameRecord expected, GameRecord actual) {
+        check(actual != null, "a record was read");
+        check(Arrays.equals(expected.moves, actual.moves), "moves");
+        check(Arrays.equals(expected.millis, actual.millis), "millis");
+        check(Arrays.equals(expected.playouts, actual.playouts), "playouts");
+        check(Arrays.equals(expected.evals, actual.evals), "evals");
+        check(expected.winner == actual.winner && expected.loser == actual.loser, "result");
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+}
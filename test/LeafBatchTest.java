@@ -0,0 +1,60 @@
+package threeChess.agents;
+
+import java.util.*;
+
+/**
+ * Scores random batches with the evaluator {@link BatchEvaluator#shared()} picks and
+ * with the scalar loop, and checks that the sums agree. Run it with
+ * --add-modules jdk.incubator.vector and the vector/ source root compiled onto the
+ * class path to check the Vector API evaluator; without them both sides are scalar.
+ *
+ * Usage: LeafBatchTest
+ */
+public class LeafBatchTest {
+
+    public static void main(String[] args) {
+        BatchEvaluator shared = BatchEvaluator.shared();
+        BatchEvaluator scalar = new BatchEvaluator.Scalar();
+        Random random = new Random(3);
+        int features = 1000;
+        float[] weights = new float[features + 1];
+        for (int i = 0; i < features; i++) {
+            weights[i] = (float) random.nextGaussian();
+        }
+        // weights[features] stays zero, the padding index
+        for (int trial = 0; trial < 500; trial++) {
+            int lanes = 1 + random.nextInt(70);
+            int rows = 1 + random.nextInt(PolicyValueModel.MAX_ACTIVE);
+            LeafBatch batch = new LeafBatch(lanes, rows, features);
+            int used = 1 + random.nextInt(lanes);
+            int[] active = new int[rows];
+            for (int lane = 0; lane < used; lane++) {
+                int n = random.nextInt(rows + 1);
+                for (int k = 0; k < n; k++) {
+                    active[k] = random.nextInt(features);
+                }
+                check(batch.add(active, n) == lane, "lanes are handed out in order");
+            }
+            shared.sums(weights, batch);
+            float[] expected = new float[used];
+            for (int lane = 0; lane < used; lane++) {
+                expected[lane] = batch.value(lane);
+            }
+            scalar.sums(weights, batch);
+            for (int lane = 0; lane < used; lane++) {
+                // a gather adds the rows in the same order as the scalar loop
+                check(expected[lane] == batch.value(lane), "lane " + lane + " of trial " + trial + ": "
+                        + expected[lane] + " != " + batch.value(lane));
+            }
+            batch.clear();
+            check(batch.size() == 0, "an empty batch after clear");
+        }
+        System.out.println("LeafBatchTest: " + shared.getClass().getSimpleName() + " agrees with Scalar");
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package threeChess.agents;
+
+import java.util.*;
+
+/**
+ * Fills node tables to their budget with random play counts and checks that an
+ * eviction removes exactly half the budget, keeps the most played nodes with their
+ * statistics, and leaves every kept node findable. Then checks that a small table
+ * stays within its budget however many keys go through it, and never fills up.
+ *
+ * Usage: NodeTableTest
+ */
+public class NodeTableTest {
+
+    public static void main(String[] args) {
+        Random random = new Random(7);
+        for (int trial = 0; trial < 200; trial++) {
+            int budget = 16 + random.nextInt(4000);
+            // few distinct counts makes many ties, large counts are past any histogram
+            int spread = trial % 3 == 0 ? 3 : trial % 3 == 1 ? 1000 : 1 << 20;
+            NodeTable nodes = new NodeTable(budget);
+            Map<Long, Integer> plays = new HashMap<>();
+            while (nodes.size() < budget) {
+                long key = random.nextLong();
+                if (key == 0 || plays.containsKey(key)) {
+                    continue;
+                }
+                int count = spread == 1 << 20 ? 256 + random.nextInt(spread) : random.nextInt(spread);
+                nodes.update(nodes.insert(key), count, count / 2f);
+                plays.put(key, count);
+            }
+            int[] sorted = plays.values().stream().mapToInt(Integer::intValue).sorted().toArray();
+            int evicted = budget / 2;
+            nodes.ensureRoom();
+            check(nodes.size() == budget - evicted, "size after eviction");
+            int kept = 0;
+            for (Map.Entry<Long, Integer> e : plays.entrySet()) {
+                int slot = nodes.find(e.getKey());
+                if (slot < 0) {
+                    check(e.getValue() <= sorted[evicted - 1], "only the least played nodes are evicted");
+                    continue;
+                }
+                kept++;
+                check(nodes.plays(slot) == e.getValue(), "plays kept");
+                check(nodes.wins(slot) == e.getValue() / 2f, "wins kept");
+                check(e.getValue() >= sorted[evicted - 1], "the most played nodes are kept");
+            }
+            check(kept == nodes.size(), "every kept node is found");
+        }
+
+        NodeTable nodes = new NodeTable(64);
+        for (long key = 1; key <= 10; key++) {
+            nodes.update(nodes.insert(key), (int) key, 0f);
+        }
+        nodes.evict(100);
+        check(nodes.size() == 0 && nodes.find(5) < 0, "evicting more than the table holds empties it");
+
+        // far more keys than the budget, as RAVE adds in one simulation, with room made before each
+        NodeTable small = new NodeTable(NodeTable.MIN_NODES);
+        for (long key = 1; key <= 10_000; key++) {
+            small.ensureRoom();
+            small.update(small.insert(key), 1, 0f);
+            check(small.size() <= small.budget(), "the budget holds");
+        }
+        NodeTable full = new NodeTable(NodeTable.MIN_NODES);
+        boolean refused = false;
+        for (long key = 1; key <= full.capacity() && !refused; key++) {
+            try {
+                full.insert(key);
+            } catch (IllegalStateException e) {
+                refused = true;
+            }
+        }
+        check(refused && full.find(full.capacity() + 1) < 0, "a full table refuses a node and lookups end");
+        try {
+            new NodeTable(NodeTable.MIN_NODES - 1);
+            check(false, "a budget below the minimum is rejected");
+        } catch (IllegalArgumentException e) {
+        }
+        System.out.println("NodeTableTest: ok");
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package threeChess.agents;
+
+import java.nio.file.*;
+import java.util.*;
+import threeChess.*;
+
+/**
+ * Writes a small book and looks positions up in it: a book move comes back in the
+ * frame of the player to move, weights pick between moves, and positions outside
+ * the book find nothing.
+ *
+ * Usage: OpeningBookTest
+ */
+public class OpeningBookTest {
+
+    public static void main(String[] args) throws Exception {
+        Board start = new Board(0);
+        List<Position[]> legal = new ArrayList<>();
+        StagedMoves staged = new StagedMoves(start);
+        while (staged.hasNext()) {
+            legal.add(staged.next());
+        }
+        check(legal.size() >= 2, "the start has two legal moves");
+        Position[] only = legal.get(0);
+        Position[] never = legal.get(1);
+        Map<Long, Map<Integer, Integer>> moves = new HashMap<>();
+        Map<Integer, Integer> weighted = new HashMap<>();
+        weighted.put(ZobristHash.canonicalMove(only[0], only[1], start.getTurn()), 5);
+        weighted.put(ZobristHash.canonicalMove(never[0], never[1], start.getTurn()), 0);
+        moves.put(ZobristHash.canonical(start), weighted);
+        Path file = Files.createTempFile("book", ".bin");
+        try {
+            OpeningBook.write(file, moves);
+            OpeningBook book = OpeningBook.open(file);
+            check(book.size() == 2, "two entries written");
+            SplittableRandom random = new SplittableRandom(1);
+            for (int i = 0; i < 100; i++) {
+                Position[] move = book.lookup(start, random);
+                check(move != null && move[0] == only[0] && move[1] == only[1], "the weighted book move");
+            }
+            Board after = (Board) start.clone();
+            after.move(only[0], only[1]);
+            check(book.lookup(after, random) == null, "no move for a position outside the book");
+        } finally {
+            Files.deleteIfExists(file);
+        }
+        System.out.println("OpeningBookTest: ok");
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+}
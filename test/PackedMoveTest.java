@@ -0,0 +1,32 @@
+package threeChess.agents;
+
+import threeChess.*;
+
+/**
+ * Checks that every move packs into an int and unpacks to the same squares.
+ *
+ * Usage: PackedMoveTest
+ */
+public class PackedMoveTest {
+
+    public static void main(String[] args) {
+        Position[] squares = Position.values();
+        java.util.Set<Integer> seen = new java.util.HashSet<>();
+        for (Position from : squares) {
+            for (Position to : squares) {
+                int move = PackedMove.encode(from, to);
+                check(PackedMove.from(move) == from && PackedMove.to(move) == to, "round trip of " + from + to);
+                Position[] decoded = PackedMove.decode(move);
+                check(decoded.length == 2 && decoded[0] == from && decoded[1] == to, "decode of " + from + to);
+                check(seen.add(move), "distinct code for " + from + to);
+            }
+        }
+        System.out.println("PackedMoveTest: " + seen.size() + " moves ok");
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package threeChess.agents;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+import threeChess.*;
+
+/**
+ * Writes a table snapshot, checks that damaged copies of it are refused, and then,
+ * in a second JVM started with threeChess.tables naming it, that every table read
+ * from the snapshot equals the table built from scratch.
+ *
+ * The tables read the snapshot once, when their classes are first used, so the
+ * reading side must run in a JVM that has not touched them yet.
+ *
+ * Usage: TableSnapshotTest
+ */
+public class TableSnapshotTest {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 1 && args[0].equals("read")) {
+            read(Paths.get(args[1]));
+            return;
+        }
+        Path file = Files.createTempFile("tables", ".snap");
+        try {
+            TableSnapshot.main(new String[] { file.toString() });
+            TableSnapshot snapshot = TableSnapshot.open(file);
+            for (int id : new int[] { TableSnapshot.ZOBRIST, TableSnapshot.RAYS, TableSnapshot.LEAPERS }) {
+                check(snapshot.section(id) != null, "section " + id + " written");
+            }
+            check(Arrays.equals(bytes(snapshot.section(TableSnapshot.ZOBRIST)), ZobristHash.encode()),
+                    "the Zobrist section holds the generated keys");
+            refused(file, 20, "a wrong checksum");
+            refused(file, 24, "a wrong fingerprint");
+            refused(file, 4, "a wrong version");
+            byte[] whole = Files.readAllBytes(file);
+            Path truncated = Files.createTempFile("tables", ".snap");
+            try {
+                Files.write(truncated, Arrays.copyOf(whole, whole.length - 1));
+                check(TableSnapshot.open(truncated).section(TableSnapshot.RAYS) == null, "a truncated snapshot is refused");
+            } finally {
+                Files.deleteIfExists(truncated);
+            }
+
+            String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+            Process reader = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    "-DthreeChess.tables=" + file, TableSnapshotTest.class.getName(), "read", file.toString())
+                    .inheritIO().start();
+            check(reader.waitFor() == 0, "the tables read from the snapshot match the built ones");
+        } finally {
+            Files.deleteIfExists(file);
+        }
+        System.out.println("TableSnapshotTest: ok");
+    }
+
+    /**
+     * Runs in a JVM whose tables come from the snapshot, and compares them with
+     * tables built from scratch.
+     */
+    private static void read(Path file) throws Exception {
+        check(TableSnapshot.shared().section(TableSnapshot.RAYS) != null, "the shared snapshot is " + file);
+        Board board = new Board(0);
+        Rays built = Rays.build(board);
+        check(Arrays.equals(Rays.of(board).encode(), built.encode()), "rays read from the snapshot");
+        check(Arrays.equals(bytes(TableSnapshot.shared().section(TableSnapshot.LEAPERS)), BitBoard.encodeLeapers(built)),
+                "capture masks in the snapshot");
+        // the keys and rotations in use are the ones read from the snapshot: check them against the generated ones
+        ByteBuffer keys = ByteBuffer.wrap(ZobristHash.encode());
+        int colours = Colour.values().length;
+        int types = PieceType.values().length;
+        Position[] squares = Position.values();
+        for (int k = 0; k < colours; k++) {
+            for (Position square : squares) {
+                int at = (colours * types * squares.length + colours) * 8 + k * squares.length + square.ordinal();
+                check(ZobristHash.rotate(square, k).ordinal() == (keys.get(at) & 0xFF), "rotation of " + square);
+            }
+        }
+        long expected = keys.getLong((colours * types * squares.length + board.getTurn().ordinal()) * 8);
+        for (Colour colour : Colour.values()) {
+            for (Position square : board.getPositions(colour)) {
+                int type = board.getPiece(square).getType().ordinal();
+                expected ^= keys.getLong(((colour.ordinal() * types + type) * squares.length + square.ordinal()) * 8);
+            }
+        }
+        check(ZobristHash.hash(board) == expected, "Zobrist keys read from the snapshot");
+        System.out.println("TableSnapshotTest: tables read from " + file + " match");
+    }
+
+    /**
+     * Checks that a copy of the snapshot with one header int changed is not read.
+     */
+    private static void refused(Path file, int offset, String what) throws Exception {
+        ByteBuffer copy = ByteBuffer.wrap(Files.readAllBytes(file));
+        copy.putInt(offset, copy.getInt(offset) ^ 1);
+        Path damaged = Files.createTempFile("tables", ".snap");
+        try {
+            Files.write(damaged, copy.array());
+            check(TableSnapshot.open(damaged).section(TableSnapshot.RAYS) == null, "a snapshot with " + what
+                    + " is refused");
+        } finally {
+            Files.deleteIfExists(damaged);
+        }
+    }
+
+    private static byte[] bytes(ByteBuffer section) {
+        byte[] out = new byte[section.remaining()];
+        section.duplicate().get(out);
+        return out;
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+}
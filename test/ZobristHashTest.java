@@ -0,0 +1,114 @@
+package threeChess.agents;
+
+import java.util.*;
+import threeChess.*;
+
+/**
+ * Checks ZobristHash against the positions it is used for.
+ *
+ * ZobristHash has no incremental update: every key is recomputed from the whole
+ * board. So this checks that the key of a board reached move by move agrees with
+ * the key of the same position reached in another order, and differs from the
+ * positions around it; that the tables read from a snapshot equal those
+ * generated from the seed; and that the rotations behind {@link ZobristHash#canonical}
+ * are inverse to each other.
+ *
+ * Usage: ZobristHashTest
+ */
+public class ZobristHashTest {
+
+    public static void main(String[] args) throws Exception {
+        rotations();
+        transpositions();
+        snapshot();
+        System.out.println("ZobristHashTest: ok");
+    }
+
+    /**
+     * Rotating a square three times, or forward then back, gives the square back,
+     * and canonical moves unpack to the moves they were packed from.
+     */
+    private static void rotations() {
+        for (Position square : Position.values()) {
+            check(ZobristHash.rotate(ZobristHash.rotate(ZobristHash.rotate(square, 1), 1), 1) == square,
+                    "three rotations of " + square);
+            check(ZobristHash.rotate(ZobristHash.rotate(square, 1), -1) == square, "rotation back of " + square);
+            for (Colour frame : Colour.values()) {
+                Position[] move = ZobristHash.fromCanonical(ZobristHash.canonicalMove(square, square, frame), frame);
+                check(move[0] == square && move[1] == square, "canonical move of " + square + " for " + frame);
+            }
+        }
+    }
+
+    /**
+     * Two quiet moves of the first player swapped around the same replies reach the
+     * same position, which must hash the same whichever order it was reached in.
+     */
+    private static void transpositions() throws Exception {
+        Board start = new Board(0);
+        List<Position[]> quiet = new ArrayList<>();
+        StagedMoves staged = new StagedMoves(start);
+        while (staged.hasNext()) {
+            Position[] move = staged.next();
+            if (staged.stage() == StagedMoves.QUIET) {
+                quiet.add(move);
+            }
+        }
+        for (int i = 0; i < quiet.size(); i++) {
+            for (int j = i + 1; j < quiet.size(); j++) {
+                Position[] a = quiet.get(i);
+                Position[] b = quiet.get(j);
+                if (a[0] == b[0] || a[1] == b[1] || a[1] == b[0] || b[1] == a[0]) {
+                    continue;
+                }
+                Board first = (Board) start.clone();
+                Board second = (Board) start.clone();
+                if (!play(first, a, b) || !play(second, b, a)) {
+                    continue;
+                }
+                check(ZobristHash.hash(first) == ZobristHash.hash(second), "hash of a transposition");
+                check(ZobristHash.canonical(first) == ZobristHash.canonical(second), "canonical key of a transposition");
+                check(ZobristHash.hash(first) != ZobristHash.hash(start), "hash after moves differs from the start");
+                return;
+            }
+        }
+        System.out.println("ZobristHashTest: no independent pair of first moves, transposition check skipped");
+    }
+
+    /**
+     * Plays the first player's move, then each opponent's first legal reply, then
+     * the first player's second move, if all are legal.
+     */
+    private static boolean play(Board board, Position[] first, Position[] second) throws Exception {
+        board.move(first[0], first[1]);
+        for (int reply = 0; reply < 2; reply++) {
+            StagedMoves staged = new StagedMoves(board);
+            if (!staged.hasNext()) {
+                return false;
+            }
+            Position[] move = staged.next();
+            if (move[0] == second[0] || move[1] == second[1] || move[1] == second[0]) {
+                return false;
+            }
+            board.move(move[0], move[1]);
+        }
+        if (!board.isLegalMove(second[0], second[1])) {
+            return false;
+        }
+        board.move(second[0], second[1]);
+        return true;
+    }
+
+    /**
+     * The encoded tables, as a snapshot stores them, are the same on every call.
+     */
+    private static void snapshot() {
+        check(Arrays.equals(ZobristHash.encode(), ZobristHash.encode()), "keys generated from the seed");
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package threeChess.agents;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Scores a {@link LeafBatch} with the Vector API: for each row of features, one
+ * gather loads the weights of as many lanes as the preferred vector holds, and one
+ * add accumulates them.
+ *
+ * This file is kept out of the default sources, in the vector/ source root, so the
+ * agents build with a plain javac. Compile it after them, onto the same output
+ * directory:
+ * javac --add-modules jdk.incubator.vector -cp out -d out vector/VectorBatchEvaluator.java
+ *
+ * Only loaded by {@link BatchEvaluator#shared()}, so that the rest of the agents
+ * run without the incubator module. The constructor checks the result against the
+ * scalar evaluator, so a broken vector implementation is never used.
+ */
+final class VectorBatchEvaluator extends BatchEvaluator {
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    VectorBatchEvaluator() {
+        float[] weights = { 0.5f, -1.25f, 2f, 0f };
+        LeafBatch batch = new LeafBatch(3, 2, 3);
+        batch.add(new int[] { 0, 1 }, 2);
+        batch.add(new int[] { 2 }, 1);
+        batch.add(new int[] { 1, 2 }, 2);
+        sums(weights, batch);
+        float[] expected = batch.out.clone();
+        new Scalar().sums(weights, batch);
+        for (int lane = 0; lane < batch.size; lane++) {
+            if (expected[lane] != batch.out[lane]) {
+                throw new IllegalStateException("vector evaluation disagrees with scalar");
+            }
+        }
+    }
+
+    @Override
+    void sums(float[] weights, LeafBatch batch) {
+        int step = SPECIES.length();
+        if (batch.capacity % step != 0) {
+            new Scalar().sums(weights, batch);
+            return;
+        }
+        for (int lane = 0; lane < batch.size; lane += step) {
+            FloatVector sum = FloatVector.zero(SPECIES);
+            for (int k = 0; k < batch.active; k++) {
+                sum = sum.add(FloatVector.fromArray(SPECIES, weights, 0, batch.index, k * batch.capacity + lane));
+            }
+            sum.intoArray(batch.out, lane);
+        }
+    }
+}